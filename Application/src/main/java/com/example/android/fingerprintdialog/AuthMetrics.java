@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+/**
+ * Receives the timings of the authentication hot path. Timers are identified by the int
+ * constants below rather than by name, so that recording one does not allocate.
+ * <p>
+ * Use {@link InMemoryAuthMetrics} to collect percentiles during development, and
+ * {@link NoOpAuthMetrics} in release builds.
+ */
+public interface AuthMetrics {
+    /** From the purchase tap to the crypto object being ready. */
+    int TAP_TO_PREPARED = 0;
+    /** Generating a new key. */
+    int CREATE_KEY = 1;
+    /** {@code Cipher.init} with the key. */
+    int CIPHER_INIT = 2;
+    /** From showing the dialog to its first frame being drawn. */
+    int DIALOG_FIRST_FRAME = 3;
+    /** From starting to listen for fingerprints to the first callback from the sensor. */
+    int FIRST_SENSOR_CALLBACK = 4;
+    /** From {@code onAuthenticationSucceeded} to the listener being called. */
+    int SUCCESS_TO_CALLBACK = 5;
+    /** From switching to the password screen to the password being verified. */
+    int PASSWORD_FALLBACK = 6;
+    /** From a request being submitted to {@link AuthenticationScheduler} to its prompt being started. */
+    int QUEUE_WAIT = 7;
+    /** A background probe of the validity of the key, see {@link FingerprintDialog#probeKeyValidity}. */
+    int KEY_PROBE = 8;
+
+    int TIMER_COUNT = 9;
+
+    /**
+     * Records one measurement. Called on the thread the measured work ended on; implementations
+     * must be thread safe and should not allocate.
+     */
+    void record (int timer, long nanos);
+}
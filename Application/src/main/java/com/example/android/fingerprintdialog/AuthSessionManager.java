@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks when the user last authenticated, so that operations within the session window can
+ * use a validity-duration key without prompting for a fingerprint again.
+ * <p>
+ * The key store still enforces the window on its own; this only decides whether it is worth
+ * trying the key before showing the dialog, and counts the prompts that were avoided.
+ */
+public class AuthSessionManager {
+
+    private final long mWindowNanos;
+    private long mLastAuthenticationNanos;
+    private boolean mAuthenticated;
+
+    private int mPromptsShown;
+    private int mPromptsAvoided;
+
+    public AuthSessionManager (long window, TimeUnit unit) {
+        mWindowNanos = unit.toNanos (window);
+    }
+
+    /**
+     * Starts a new session window. Call this after each successful authentication.
+     */
+    public synchronized void recordAuthentication () {
+        mLastAuthenticationNanos = System.nanoTime ();
+        mAuthenticated = true;
+    }
+
+    /**
+     * Ends the current session, e.g. when the key has been invalidated.
+     */
+    public synchronized void invalidate () {
+        mAuthenticated = false;
+    }
+
+    /**
+     * @return true if the last authentication happened within the session window
+     */
+    public synchronized boolean isSessionActive () {
+        return mAuthenticated && System.nanoTime () - mLastAuthenticationNanos < mWindowNanos;
+    }
+
+    synchronized void recordPromptShown () {
+        mPromptsShown++;
+    }
+
+    synchronized void recordPromptAvoided () {
+        mPromptsAvoided++;
+    }
+
+    public synchronized int getPromptsShown () {
+        return mPromptsShown;
+    }
+
+    /**
+     * @return how many operations went ahead within the session window without a prompt
+     */
+    public synchronized int getPromptsAvoided () {
+        return mPromptsAvoided;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import android.app.FragmentManager;
+import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs at most one authentication at a time with a {@link FingerprintDialog}. Requests made
+ * while one is in flight, such as a double tap on the purchase button, join it rather than
+ * preparing the crypto object again and showing the dialog a second time; its outcome is then
+ * reported to every caller that was waiting for it.
+ * <p>
+ * An authentication ends once its outcome is delivered and the dialog is gone; with
+ * {@link TimingPolicy#DELIVER_IMMEDIATELY} the dialog stays up after the delivery. A request made
+ * in between starts the next authentication as soon as the dialog is dismissed.
+ * <p>
+ * Callers share the one authenticated {@code CryptoObject}, whose cipher can only be used for a
+ * single operation, so a caller that asks again while waiting is only told once.
+ */
+public class AuthenticationCoordinator implements FingerprintDialog.AuthenticationListener,
+        FingerprintDialog.OnDismissedListener {
+
+    private final FingerprintDialog mDialog;
+    private final Executor mExecutor;
+    private final Handler mMainHandler = new Handler (Looper.getMainLooper ());
+
+    private final List<FingerprintDialog.AuthenticationListener> mWaiters = new ArrayList<> ();
+    private boolean mInFlight;
+    private boolean mDelivered;
+    private boolean mDismissed;
+
+    // Requests made after the outcome was delivered, while the dialog was still up.
+    private final List<FingerprintDialog.AuthenticationListener> mNextWaiters = new ArrayList<> ();
+    private Context mNextContext;
+    private FragmentManager mNextFragmentManager;
+
+    private int mAuthenticationCount;
+    private int mDuplicateCount;
+
+    /**
+     * @param executor the executor the callers are notified on, e.g. to do the crypto work off
+     *                 the main thread; null to notify them on the main thread
+     */
+    public AuthenticationCoordinator (FingerprintDialog dialog, @Nullable Executor executor) {
+        mDialog = dialog;
+        mExecutor = executor;
+        mDialog.setAuthenticationListener (this, executor);
+        mDialog.setOnDismissedListener (this);
+    }
+
+    /**
+     * Shows the dialog, or joins the authentication already in flight. If its outcome has
+     * already been delivered, the dialog is shown again once it has been dismissed.
+     */
+    @MainThread
+    public void authenticate (Context context, FragmentManager fragmentManager,
+                              FingerprintDialog.AuthenticationListener listener) {
+        synchronized (this) {
+            if (mInFlight && mDelivered) {
+                if (! mNextWaiters.isEmpty ()) {
+                    mDuplicateCount++;
+                }
+                addWaiter (mNextWaiters, listener);
+                mNextContext = context;
+                mNextFragmentManager = fragmentManager;
+                return;
+            }
+            addWaiter (mWaiters, listener);
+            if (mInFlight) {
+                mDuplicateCount++;
+                return;
+            }
+            start ();
+        }
+        mDialog.showFingerprintDialog (context, fragmentManager);
+    }
+
+    private static void addWaiter (List<FingerprintDialog.AuthenticationListener> waiters,
+                                   FingerprintDialog.AuthenticationListener listener) {
+        if (! waiters.contains (listener)) {
+            waiters.add (listener);
+        }
+    }
+
+    private void start () {
+        mInFlight = true;
+        mDelivered = false;
+        mDismissed = false;
+        mAuthenticationCount++;
+    }
+
+    /**
+     * Makes {@code newListener} wait in place of {@code oldListener}, e.g. an activity re-created
+     * after a configuration change in place of the destroyed one.
+     */
+    public synchronized void replaceListener (FingerprintDialog.AuthenticationListener oldListener,
+                                              FingerprintDialog.AuthenticationListener newListener) {
+        replaceWaiter (mWaiters, oldListener, newListener);
+        replaceWaiter (mNextWaiters, oldListener, newListener);
+    }
+
+    private static void replaceWaiter (List<FingerprintDialog.AuthenticationListener> waiters,
+                                       FingerprintDialog.AuthenticationListener oldListener,
+                                       FingerprintDialog.AuthenticationListener newListener) {
+        int index = waiters.indexOf (oldListener);
+        if (index < 0) {
+            return;
+        }
+        if (waiters.contains (newListener)) {
+            waiters.remove (index);
+        } else {
+            waiters.set (index, newListener);
+        }
+    }
+
+    FingerprintDialog getDialog () {
+        return mDialog;
+    }
+
+    /**
+     * @return the executor the callers are notified on, or null for the main thread
+     */
+    @Nullable
+    Executor getExecutor () {
+        return mExecutor;
+    }
+
+    /**
+     * @return true while an authentication is in flight
+     */
+    public synchronized boolean isInFlight () {
+        return mInFlight;
+    }
+
+    /**
+     * @return how many authentications were started
+     */
+    public synchronized int getAuthenticationCount () {
+        return mAuthenticationCount;
+    }
+
+    /**
+     * @return how many requests joined an authentication already in flight
+     */
+    public synchronized int getDuplicateCount () {
+        return mDuplicateCount;
+    }
+
+    @Override
+    public void onSuccessfulAuthentication (boolean withFingerprint,
+                                            @Nullable FingerprintManager.CryptoObject cryptoObject) {
+        for (FingerprintDialog.AuthenticationListener waiter : deliver ()) {
+            waiter.onSuccessfulAuthentication (withFingerprint, cryptoObject);
+        }
+    }
+
+    @Override
+    public void onAuthenticationCancelled () {
+        for (FingerprintDialog.AuthenticationListener waiter : deliver ()) {
+            waiter.onAuthenticationCancelled ();
+        }
+    }
+
+    @Override
+    public void onDismissed () {
+        synchronized (this) {
+            mDismissed = true;
+        }
+        finish ();
+    }
+
+    /**
+     * Records that the outcome is out, and ends the authentication if the dialog is gone too.
+     *
+     * @return the callers that were waiting for it
+     */
+    private List<FingerprintDialog.AuthenticationListener> deliver () {
+        List<FingerprintDialog.AuthenticationListener> waiters;
+        synchronized (this) {
+            waiters = new ArrayList<> (mWaiters);
+            mWaiters.clear ();
+            mDelivered = true;
+        }
+        // Called on the executor of the callers: the dialog is shown from the main thread.
+        mMainHandler.post (mFinishRunnable);
+        return waiters;
+    }
+
+    private final Runnable mFinishRunnable = new Runnable () {
+        @Override
+        public void run () {
+            finish ();
+        }
+    };
+
+    /**
+     * Ends the authentication in flight once its outcome is delivered and the dialog is gone,
+     * and starts the next one if requests were made meanwhile.
+     */
+    @MainThread
+    private void finish () {
+        Context context;
+        FragmentManager fragmentManager;
+        synchronized (this) {
+            if (! mInFlight || ! mDelivered || ! mDismissed) {
+                return;
+            }
+            mInFlight = false;
+            if (mNextWaiters.isEmpty ()) {
+                return;
+            }
+            mWaiters.addAll (mNextWaiters);
+            mNextWaiters.clear ();
+            context = mNextContext;
+            fragmentManager = mNextFragmentManager;
+            mNextContext = null;
+            mNextFragmentManager = null;
+            start ();
+        }
+        mDialog.showFingerprintDialog (context, fragmentManager);
+    }
+}
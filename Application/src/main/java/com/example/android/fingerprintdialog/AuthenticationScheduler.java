@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import android.app.Activity;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues the authentication requests of the different parts of the app, such as checkout, token
+ * refresh and settings, in front of an {@link AuthenticationCoordinator}, so that they never
+ * compete for the dialog.
+ * <p>
+ * One prompt is shown at a time, for the request with the highest priority, then the earliest
+ * deadline, then the earliest submission. Requests with the same merge key are compatible: they
+ * are answered by a single prompt, whether they were queued together or one arrives while the
+ * prompt of the other is shown. As with the coordinator, merged requests share the one
+ * authenticated {@code CryptoObject}, whose cipher can only be used once, so only merge requests
+ * that agree on which of them uses it. A request still queued at its deadline expires and is
+ * told it was cancelled.
+ * <p>
+ * Prompts are only shown while a host activity is set with {@link #setHost}; requests submitted
+ * in the background wait for the app to come to the foreground. Listeners are notified on the
+ * executor of the coordinator. The other methods must be called on the main thread.
+ */
+public class AuthenticationScheduler implements FingerprintDialog.AuthenticationListener {
+
+    /** E.g. a settings change, which the user can confirm later. */
+    public static final int PRIORITY_LOW = 0;
+    /** E.g. a background token refresh. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** E.g. a checkout, which the user is waiting on. */
+    public static final int PRIORITY_HIGH = 2;
+
+    /** Passed as a timeout for a request that never expires. */
+    public static final long NO_TIMEOUT = 0;
+
+    private static final Comparator<Request> ORDER = new Comparator<Request> () {
+        @Override
+        public int compare (Request a, Request b) {
+            if (a.mPriority != b.mPriority) {
+                return a.mPriority > b.mPriority ? -1 : 1;
+            }
+            if (a.mDeadlineNanos != b.mDeadlineNanos) {
+                return a.mDeadlineNanos - b.mDeadlineNanos < 0 ? -1 : 1;
+            }
+            return Long.compare (a.mSequence, b.mSequence);
+        }
+    };
+
+    private final AuthenticationCoordinator mCoordinator;
+    private final Handler mMainHandler = new Handler (Looper.getMainLooper ());
+
+    // Guarded by this: the outcome of a prompt arrives on the executor of the coordinator.
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<> (8, ORDER);
+    private final List<Request> mPrompted = new ArrayList<> ();
+    private boolean mInFlight;
+    @Nullable
+    private String mPromptedMergeKey;
+    private long mSequence;
+
+    private int mMaxQueueDepth;
+    private int mPromptCount;
+    private int mMergedCount;
+    private int mExpiredCount;
+
+    private Activity mHost;
+
+    /**
+     * A queued or prompted authentication request.
+     */
+    public final class Request {
+        // Guarded by the scheduler, as it is replaced when the host is re-created.
+        FingerprintDialog.AuthenticationListener mListener;
+        final int mPriority;
+        @Nullable
+        final String mMergeKey;
+        final long mSubmitNanos;
+        final long mDeadlineNanos;
+        final long mSequence;
+        boolean mCancelled;
+
+        Request (FingerprintDialog.AuthenticationListener listener, int priority,
+                 @Nullable String mergeKey, long submitNanos, long deadlineNanos, long sequence) {
+            mListener = listener;
+            mPriority = priority;
+            mMergeKey = mergeKey;
+            mSubmitNanos = submitNanos;
+            mDeadlineNanos = deadlineNanos;
+            mSequence = sequence;
+        }
+
+        /**
+         * Withdraws the request; its listener is not called. A prompt already shown for it stays
+         * up, as other requests may have been merged into it.
+         */
+        @MainThread
+        public void cancel () {
+            synchronized (AuthenticationScheduler.this) {
+                mCancelled = true;
+                if (mQueue.remove (this)) {
+                    scheduleExpiry ();
+                }
+            }
+        }
+    }
+
+    public AuthenticationScheduler (AuthenticationCoordinator coordinator) {
+        mCoordinator = coordinator;
+    }
+
+    /**
+     * Sets the activity prompts are shown in, or null while there is none in the foreground,
+     * e.g. from {@code onResume} and {@code onPause}.
+     */
+    @MainThread
+    public void setHost (@Nullable Activity host) {
+        mHost = host;
+        if (host != null) {
+            dispatch ();
+        }
+    }
+
+    /**
+     * Queues a request for authentication.
+     *
+     * @param mergeKey      requests with the same key are answered by the same prompt; null to
+     *                      never merge this one
+     * @param timeoutMillis how long the request may wait for its prompt before expiring, or
+     *                      {@link #NO_TIMEOUT}
+     * @return the request, to cancel it. If {@code listener} is already waiting with the same
+     * merge key, the request it is waiting with.
+     */
+    @MainThread
+    public Request submit (@Nullable String mergeKey, int priority, long timeoutMillis,
+                           FingerprintDialog.AuthenticationListener listener) {
+        long now = System.nanoTime ();
+        long deadline = timeoutMillis == NO_TIMEOUT
+                ? Long.MAX_VALUE : now + TimeUnit.MILLISECONDS.toNanos (timeoutMillis);
+        Request request;
+        synchronized (this) {
+            Request existing = findWaiting (mergeKey, listener);
+            if (existing != null) {
+                return existing;
+            }
+            request = new Request (listener, priority, mergeKey, now, deadline, mSequence++);
+            if (mInFlight && mergeKey != null && mergeKey.equals (mPromptedMergeKey)) {
+                // The prompt for it is already shown.
+                mPrompted.add (request);
+                mMergedCount++;
+                getMetrics ().record (AuthMetrics.QUEUE_WAIT, 0);
+                return request;
+            }
+            mQueue.add (request);
+            mMaxQueueDepth = Math.max (mMaxQueueDepth, mQueue.size ());
+            scheduleExpiry ();
+        }
+        dispatch ();
+        return request;
+    }
+
+    /**
+     * @return the metrics of the dialog, which may be set after the scheduler is created
+     */
+    private AuthMetrics getMetrics () {
+        return mCoordinator.getDialog ().getMetrics ();
+    }
+
+    @Nullable
+    private Request findWaiting (@Nullable String mergeKey,
+                                 FingerprintDialog.AuthenticationListener listener) {
+        if (mergeKey == null) {
+            return null;
+        }
+        if (mInFlight && mergeKey.equals (mPromptedMergeKey)) {
+            for (Request request : mPrompted) {
+                if (request.mListener == listener && ! request.mCancelled) {
+                    return request;
+                }
+            }
+        }
+        for (Request request : mQueue) {
+            if (request.mListener == listener && mergeKey.equals (request.mMergeKey)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Shows the prompt for the next request, together with every queued request compatible with
+     * it, unless a prompt is already shown.
+     */
+    @MainThread
+    private void dispatch () {
+        Activity host = mHost;
+        if (host == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mInFlight) {
+                return;
+            }
+            long now = System.nanoTime ();
+            expire (now);
+            Request next = mQueue.poll ();
+            if (next == null) {
+                return;
+            }
+            mPrompted.add (next);
+            if (next.mMergeKey != null) {
+                for (Iterator<Request> it = mQueue.iterator (); it.hasNext (); ) {
+                    Request request = it.next ();
+                    if (next.mMergeKey.equals (request.mMergeKey)) {
+                        it.remove ();
+                        mPrompted.add (request);
+                        mMergedCount++;
+                    }
+                }
+            }
+            for (Request request : mPrompted) {
+                getMetrics ().record (AuthMetrics.QUEUE_WAIT, now - request.mSubmitNanos);
+            }
+            mInFlight = true;
+            mPromptedMergeKey = next.mMergeKey;
+            mPromptCount++;
+            scheduleExpiry ();
+        }
+        mCoordinator.authenticate (host, host.getFragmentManager (), this);
+    }
+
+    /**
+     * Removes the queued requests whose deadline has passed, and tells their listeners.
+     */
+    private void expire (long now) {
+        final List<Request> expired = new ArrayList<> ();
+        for (Iterator<Request> it = mQueue.iterator (); it.hasNext (); ) {
+            Request request = it.next ();
+            if (request.mDeadlineNanos - now <= 0) {
+                it.remove ();
+                expired.add (request);
+            }
+        }
+        if (expired.isEmpty ()) {
+            return;
+        }
+        mExpiredCount += expired.size ();
+        final List<FingerprintDialog.AuthenticationListener> listeners = listenersOf (expired);
+        Runnable notify = new Runnable () {
+            @Override
+            public void run () {
+                for (FingerprintDialog.AuthenticationListener listener : listeners) {
+                    listener.onAuthenticationCancelled ();
+                }
+            }
+        };
+        Executor executor = mCoordinator.getExecutor ();
+        if (executor != null) {
+            executor.execute (notify);
+        } else {
+            mMainHandler.post (notify);
+        }
+    }
+
+    private static List<FingerprintDialog.AuthenticationListener> listenersOf (List<Request> requests) {
+        List<FingerprintDialog.AuthenticationListener> listeners = new ArrayList<> (requests.size ());
+        for (Request request : requests) {
+            if (! request.mCancelled) {
+                listeners.add (request.mListener);
+            }
+        }
+        return listeners;
+    }
+
+    private final Runnable mExpireRunnable = new Runnable () {
+        @Override
+        public void run () {
+            synchronized (AuthenticationScheduler.this) {
+                expire (System.nanoTime ());
+                scheduleExpiry ();
+            }
+        }
+    };
+
+    /**
+     * Wakes up at the earliest deadline of the queued requests, so that they expire on time
+     * even while a prompt is shown or there is no host.
+     */
+    private void scheduleExpiry () {
+        mMainHandler.removeCallbacks (mExpireRunnable);
+        long earliest = Long.MAX_VALUE;
+        for (Request request : mQueue) {
+            earliest = Math.min (earliest, request.mDeadlineNanos);
+        }
+        if (earliest != Long.MAX_VALUE) {
+            long delayMillis = TimeUnit.NANOSECONDS.toMillis (earliest - System.nanoTime ()) + 1;
+            mMainHandler.postDelayed (mExpireRunnable, Math.max (0, delayMillis));
+        }
+    }
+
+    @Override
+    public void onSuccessfulAuthentication (boolean withFingerprint,
+                                            @Nullable FingerprintManager.CryptoObject cryptoObject) {
+        for (FingerprintDialog.AuthenticationListener listener : finishPrompt ()) {
+            listener.onSuccessfulAuthentication (withFingerprint, cryptoObject);
+        }
+    }
+
+    @Override
+    public void onAuthenticationCancelled () {
+        for (FingerprintDialog.AuthenticationListener listener : finishPrompt ()) {
+            listener.onAuthenticationCancelled ();
+        }
+    }
+
+    /**
+     * Ends the prompt shown, and moves on to the next request on the main thread.
+     *
+     * @return the listeners of the requests it answers, without the cancelled ones
+     */
+    private List<FingerprintDialog.AuthenticationListener> finishPrompt () {
+        List<FingerprintDialog.AuthenticationListener> answered;
+        synchronized (this) {
+            answered = listenersOf (mPrompted);
+            mPrompted.clear ();
+            mInFlight = false;
+            mPromptedMergeKey = null;
+        }
+        mMainHandler.post (mDispatchRunnable);
+        return answered;
+    }
+
+    private final Runnable mDispatchRunnable = new Runnable () {
+        @Override
+        public void run () {
+            dispatch ();
+        }
+    };
+
+    /**
+     * Makes {@code newListener} wait in place of {@code oldListener} for every request, e.g. an
+     * activity re-created after a configuration change in place of the destroyed one.
+     */
+    public synchronized void replaceListener (FingerprintDialog.AuthenticationListener oldListener,
+                                              FingerprintDialog.AuthenticationListener newListener) {
+        for (Request request : mPrompted) {
+            if (request.mListener == oldListener) {
+                request.mListener = newListener;
+            }
+        }
+        for (Request request : mQueue) {
+            if (request.mListener == oldListener) {
+                request.mListener = newListener;
+            }
+        }
+    }
+
+    /**
+     * @return the requests waiting for their prompt
+     */
+    public synchronized int getQueueDepth () {
+        return mQueue.size ();
+    }
+
+    public synchronized int getMaxQueueDepth () {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return how many prompts were shown
+     */
+    public synchronized int getPromptCount () {
+        return mPromptCount;
+    }
+
+    /**
+     * @return how many requests were answered by the prompt of another one
+     */
+    public synchronized int getMergedCount () {
+        return mMergedCount;
+    }
+
+    /**
+     * @return how many requests expired before their prompt was shown
+     */
+    public synchronized int getExpiredCount () {
+        return mExpiredCount;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A small bounded pool of {@link Cipher} instances keyed by transformation and key alias, so
+ * that {@code Cipher.getInstance} is not paid on every fingerprint-gated operation.
+ * <p>
+ * A borrowed cipher is in an unspecified state: callers must always call {@code Cipher.init}
+ * before using it, which fully resets any state left over from its previous use. Ciphers are
+ * returned with {@link #release} once the operation is finished, and are never handed out
+ * twice at the same time.
+ */
+public class CipherPool {
+
+    private final int mMaxIdle;
+    // Access ordered, so the least recently used transformation/alias pair is evicted first.
+    private final LinkedHashMap<String, ArrayDeque<Cipher>> mIdle =
+            new LinkedHashMap<> (4, 0.75f, true);
+    private int mIdleCount;
+
+    private long mBorrowCount;
+    private long mBorrowNanos;
+    private long mHitCount;
+    private long mEvictionCount;
+
+    /**
+     * @param maxIdle the maximum number of idle ciphers kept across all keys
+     */
+    public CipherPool (int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * @return an idle cipher for {@code transformation} and {@code keyAlias}, or a new one if
+     * none is available. It must be initialized before use.
+     */
+    public Cipher borrow (String transformation, String keyAlias) {
+        long start = System.nanoTime ();
+        Cipher cipher = null;
+        synchronized (this) {
+            ArrayDeque<Cipher> idle = mIdle.get (key (transformation, keyAlias));
+            if (idle != null && ! idle.isEmpty ()) {
+                cipher = idle.pop ();
+                mIdleCount--;
+                mHitCount++;
+            }
+        }
+        if (cipher == null) {
+            try {
+                cipher = Cipher.getInstance (transformation);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new RuntimeException ("Failed to get an instance of Cipher", e);
+            }
+        }
+        long elapsed = System.nanoTime () - start;
+        synchronized (this) {
+            mBorrowCount++;
+            mBorrowNanos += elapsed;
+        }
+        return cipher;
+    }
+
+    /**
+     * Returns a cipher obtained from {@link #borrow} to the pool. The least recently used idle
+     * cipher is evicted if the pool is full.
+     */
+    public synchronized void release (String keyAlias, Cipher cipher) {
+        if (mMaxIdle <= 0) {
+            mEvictionCount++;
+            return;
+        }
+        if (mIdleCount >= mMaxIdle) {
+            evictOne ();
+        }
+        // Cipher.getAlgorithm () returns the transformation the cipher was created with.
+        String key = key (cipher.getAlgorithm (), keyAlias);
+        ArrayDeque<Cipher> idle = mIdle.get (key);
+        if (idle == null) {
+            idle = new ArrayDeque<> ();
+            mIdle.put (key, idle);
+        }
+        idle.push (cipher);
+        mIdleCount++;
+    }
+
+    /**
+     * Drops all idle ciphers for {@code keyAlias}, e.g. after the key has been recreated.
+     */
+    public synchronized void clear (String keyAlias) {
+        Iterator<Map.Entry<String, ArrayDeque<Cipher>>> it = mIdle.entrySet ().iterator ();
+        while (it.hasNext ()) {
+            Map.Entry<String, ArrayDeque<Cipher>> entry = it.next ();
+            if (entry.getKey ().endsWith ("|" + keyAlias)) {
+                mIdleCount -= entry.getValue ().size ();
+                mEvictionCount += entry.getValue ().size ();
+                it.remove ();
+            }
+        }
+    }
+
+    public synchronized int getIdleCount () {
+        return mIdleCount;
+    }
+
+    public synchronized long getBorrowCount () {
+        return mBorrowCount;
+    }
+
+    /**
+     * @return how many borrows were served from an idle cipher
+     */
+    public synchronized long getHitCount () {
+        return mHitCount;
+    }
+
+    public synchronized long getEvictionCount () {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the mean time spent in {@link #borrow}, in nanoseconds
+     */
+    public synchronized long getAverageBorrowNanos () {
+        return mBorrowCount == 0 ? 0 : mBorrowNanos / mBorrowCount;
+    }
+
+    private void evictOne () {
+        Iterator<ArrayDeque<Cipher>> it = mIdle.values ().iterator ();
+        while (it.hasNext ()) {
+            ArrayDeque<Cipher> idle = it.next ();
+            if (! idle.isEmpty ()) {
+                // Drop the oldest cipher of the least recently used key.
+                idle.removeLast ();
+                mIdleCount--;
+                mEvictionCount++;
+                if (idle.isEmpty ()) {
+                    it.remove ();
+                }
+                return;
+            }
+        }
+    }
+
+    private static String key (String transformation, String keyAlias) {
+        return transformation + "|" + keyAlias;
+    }
+}
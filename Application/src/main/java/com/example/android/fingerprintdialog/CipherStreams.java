@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Pushes a payload of any size through an initialized (e.g. fingerprint authenticated)
+ * {@link Cipher} in fixed-size chunks, so that memory use does not grow with the payload.
+ * <p>
+ * The chunk buffers are allocated once and reused for every call. An instance is therefore not
+ * thread safe; use one per thread.
+ */
+public class CipherStreams {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    private final byte[] mInBuffer;
+    private byte[] mOutBuffer;
+    private final ByteBuffer mInByteBuffer;
+    private ByteBuffer mOutByteBuffer;
+
+    public CipherStreams () {
+        this (DEFAULT_CHUNK_SIZE);
+    }
+
+    public CipherStreams (int chunkSize) {
+        mInBuffer = new byte[chunkSize];
+        mOutBuffer = new byte[chunkSize + 32];
+        mInByteBuffer = ByteBuffer.wrap (mInBuffer);
+        mOutByteBuffer = ByteBuffer.wrap (mOutBuffer);
+    }
+
+    /**
+     * Reads {@code in} to the end and writes the result of {@code cipher} over it to
+     * {@code out}, finishing with {@code doFinal}. Neither stream is closed.
+     *
+     * @return the number of bytes written to {@code out}
+     */
+    public long process (Cipher cipher, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        long written = 0;
+        int read;
+        while ((read = in.read (mInBuffer)) != - 1) {
+            ensureOutputSize (cipher, read);
+            int produced = cipher.update (mInBuffer, 0, read, mOutBuffer, 0);
+            out.write (mOutBuffer, 0, produced);
+            written += produced;
+        }
+        ensureOutputSize (cipher, 0);
+        int produced = cipher.doFinal (mOutBuffer, 0);
+        out.write (mOutBuffer, 0, produced);
+        return written + produced;
+    }
+
+    /**
+     * Channel variant of {@link #process(Cipher, InputStream, OutputStream)}, e.g. for
+     * {@link java.nio.channels.FileChannel}s. Neither channel is closed.
+     *
+     * @return the number of bytes written to {@code out}
+     */
+    public long process (Cipher cipher, ReadableByteChannel in, WritableByteChannel out)
+            throws IOException, GeneralSecurityException {
+        long written = 0;
+        while (true) {
+            mInByteBuffer.clear ();
+            if (in.read (mInByteBuffer) == - 1) {
+                break;
+            }
+            mInByteBuffer.flip ();
+            ensureOutputSize (cipher, mInByteBuffer.remaining ());
+            mOutByteBuffer.clear ();
+            cipher.update (mInByteBuffer, mOutByteBuffer);
+            written += drain (out);
+        }
+        mInByteBuffer.clear ();
+        mInByteBuffer.limit (0);
+        ensureOutputSize (cipher, 0);
+        mOutByteBuffer.clear ();
+        cipher.doFinal (mInByteBuffer, mOutByteBuffer);
+        return written + drain (out);
+    }
+
+    private long drain (WritableByteChannel out) throws IOException {
+        mOutByteBuffer.flip ();
+        int count = mOutByteBuffer.remaining ();
+        while (mOutByteBuffer.hasRemaining ()) {
+            out.write (mOutByteBuffer);
+        }
+        return count;
+    }
+
+    /**
+     * Grows the output buffer if the cipher may produce more than it holds. This only happens
+     * for modes that buffer input before producing output, e.g. GCM decryption.
+     */
+    private void ensureOutputSize (Cipher cipher, int inputLength) {
+        int needed = cipher.getOutputSize (inputLength);
+        if (needed > mOutBuffer.length) {
+            mOutBuffer = new byte[needed];
+            mOutByteBuffer = ByteBuffer.wrap (mOutBuffer);
+        }
+    }
+}
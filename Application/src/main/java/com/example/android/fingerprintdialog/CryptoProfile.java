@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Locale;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * The AES transformation and key parameters the fingerprint-bound key is generated and used with.
+ * The names and purpose flags are those of {@code android.security.keystore.KeyProperties}.
+ * <p>
+ * The IV is picked by the key store when a cipher is initialized for encryption; read it with
+ * {@code Cipher.getIV()} after the {@code init} and store it with the ciphertext, as
+ * {@link #getParameterSpec(byte[])} needs it to decrypt.
+ */
+public final class CryptoProfile {
+
+    public static final String BLOCK_MODE_CBC = "CBC";
+    public static final String BLOCK_MODE_GCM = "GCM";
+    public static final String PADDING_PKCS7 = "PKCS7Padding";
+    public static final String PADDING_NONE = "NoPadding";
+
+    public static final int PURPOSE_ENCRYPT = 1;
+    public static final int PURPOSE_DECRYPT = 2;
+
+    /** Length of the GCM authentication tag appended to the ciphertext. */
+    public static final int GCM_TAG_LENGTH_BITS = 128;
+
+    /**
+     * The original profile of the sample. The ciphertext is not authenticated; pair it with a
+     * MAC if the backend needs to detect tampering.
+     */
+    public static final CryptoProfile AES_CBC_PKCS7 =
+            new CryptoProfile (BLOCK_MODE_CBC, PADDING_PKCS7, 128, PURPOSE_ENCRYPT | PURPOSE_DECRYPT);
+
+    /**
+     * Authenticated encryption in a single pass, and faster than CBC on hardware with AES
+     * instructions.
+     */
+    public static final CryptoProfile AES_GCM =
+            new CryptoProfile (BLOCK_MODE_GCM, PADDING_NONE, 256, PURPOSE_ENCRYPT | PURPOSE_DECRYPT);
+
+    private final String mBlockMode;
+    private final String mPadding;
+    private final int mKeySize;
+    private final int mPurposes;
+    private final String mTransformation;
+
+    /**
+     * @param keySize  in bits: 128, 192 or 256
+     * @param purposes a combination of {@link #PURPOSE_ENCRYPT} and {@link #PURPOSE_DECRYPT}
+     */
+    public CryptoProfile (String blockMode, String padding, int keySize, int purposes) {
+        if (BLOCK_MODE_GCM.equals (blockMode) && ! PADDING_NONE.equals (padding)) {
+            throw new IllegalArgumentException ("GCM is a stream mode and takes no padding");
+        }
+        mBlockMode = blockMode;
+        mPadding = padding;
+        mKeySize = keySize;
+        mPurposes = purposes;
+        mTransformation = "AES/" + blockMode + "/" + padding;
+    }
+
+    public String getBlockMode () {
+        return mBlockMode;
+    }
+
+    public String getPadding () {
+        return mPadding;
+    }
+
+    public int getKeySize () {
+        return mKeySize;
+    }
+
+    public int getPurposes () {
+        return mPurposes;
+    }
+
+    /**
+     * @return the transformation to pass to {@code Cipher.getInstance}
+     */
+    public String getTransformation () {
+        return mTransformation;
+    }
+
+    /**
+     * @return true if the ciphertext carries its own authentication tag
+     */
+    public boolean isAuthenticated () {
+        return BLOCK_MODE_GCM.equals (mBlockMode);
+    }
+
+    /**
+     * @param iv the IV the data was encrypted with
+     * @return the parameters to initialize a cipher for decryption with
+     */
+    public AlgorithmParameterSpec getParameterSpec (byte[] iv) {
+        if (isAuthenticated ()) {
+            return new GCMParameterSpec (GCM_TAG_LENGTH_BITS, iv);
+        }
+        return new IvParameterSpec (iv);
+    }
+
+    /**
+     * @return the suffix of the key alias, so that keys generated for different profiles do not
+     * replace one another. Empty for {@link #AES_CBC_PKCS7}, which keeps the original alias.
+     */
+    String getKeyNameSuffix () {
+        if (equals (AES_CBC_PKCS7)) {
+            return "";
+        }
+        return ("_" + mBlockMode + "_" + mPadding + "_" + mKeySize + "_" + mPurposes).toLowerCase (Locale.US);
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (! (o instanceof CryptoProfile)) {
+            return false;
+        }
+        CryptoProfile that = (CryptoProfile) o;
+        return mKeySize == that.mKeySize && mPurposes == that.mPurposes
+                && mBlockMode.equals (that.mBlockMode) && mPadding.equals (that.mPadding);
+    }
+
+    @Override
+    public int hashCode () {
+        int result = mBlockMode.hashCode ();
+        result = 31 * result + mPadding.hashCode ();
+        result = 31 * result + mKeySize;
+        result = 31 * result + mPurposes;
+        return result;
+    }
+
+    @Override
+    public String toString () {
+        return mTransformation + " (" + mKeySize + " bit)";
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+
+/**
+ * Caches the fingerprint hardware, enrollment and secure lock screen state, each of which is a
+ * binder call to the system. Every value is queried at most once until {@link #invalidate()} is
+ * called, which the host does when it comes back to the foreground and the dialog does when it
+ * finds the key invalidated by a new enrollment.
+ */
+public class FingerprintAvailability {
+
+    private final FingerprintManager mFingerprintManager;
+    private final KeyguardManager mKeyguardManager;
+
+    private Boolean mHardwareDetected;
+    private Boolean mHasEnrolledFingerprints;
+    private Boolean mKeyguardSecure;
+
+    private int mIpcCount;
+    private int mCachedCount;
+
+    public FingerprintAvailability (Context context) {
+        mFingerprintManager = context.getSystemService (FingerprintManager.class);
+        mKeyguardManager = context.getSystemService (KeyguardManager.class);
+    }
+
+    public synchronized boolean isHardwareDetected () {
+        if (mHardwareDetected == null) {
+            mIpcCount++;
+            // The line below prevents the false positive inspection from Android Studio
+            // noinspection ResourceType
+            mHardwareDetected = mFingerprintManager.isHardwareDetected ();
+        } else {
+            mCachedCount++;
+        }
+        return mHardwareDetected;
+    }
+
+    public synchronized boolean hasEnrolledFingerprints () {
+        if (mHasEnrolledFingerprints == null) {
+            mIpcCount++;
+            // The line below prevents the false positive inspection from Android Studio
+            // noinspection ResourceType
+            mHasEnrolledFingerprints = mFingerprintManager.hasEnrolledFingerprints ();
+        } else {
+            mCachedCount++;
+        }
+        return mHasEnrolledFingerprints;
+    }
+
+    public synchronized boolean isKeyguardSecure () {
+        if (mKeyguardSecure == null) {
+            mIpcCount++;
+            mKeyguardSecure = mKeyguardManager.isKeyguardSecure ();
+        } else {
+            mCachedCount++;
+        }
+        return mKeyguardSecure;
+    }
+
+    /**
+     * @return true if the device has fingerprint hardware and at least one enrolled fingerprint
+     */
+    public boolean isFingerprintAuthAvailable () {
+        return isHardwareDetected () && hasEnrolledFingerprints ();
+    }
+
+    /**
+     * Forgets the cached state, so that the next queries go back to the system.
+     */
+    public synchronized void invalidate () {
+        mHardwareDetected = null;
+        mHasEnrolledFingerprints = null;
+        mKeyguardSecure = null;
+    }
+
+    /**
+     * @return how many queries went to the system
+     */
+    public synchronized int getIpcCount () {
+        return mIpcCount;
+    }
+
+    /**
+     * @return how many queries were served from the cache
+     */
+    public synchronized int getCachedCount () {
+        return mCachedCount;
+    }
+}
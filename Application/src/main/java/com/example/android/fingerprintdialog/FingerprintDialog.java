@@ -17,45 +17,64 @@
 package com.example.android.fingerprintdialog;
 
 import android.annotation.SuppressLint;
+import android.app.Activity;
 import android.app.DialogFragment;
 import android.app.FragmentManager;
 import android.app.KeyguardManager;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.graphics.drawable.Drawable;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Bundle;
 import android.os.CancellationSignal;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.view.AsyncLayoutInflater;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.ContextThemeWrapper;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
-import android.widget.ImageView;
-import android.widget.RelativeLayout;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 
 /**
@@ -70,30 +89,89 @@ public class FingerprintDialog extends DialogFragment {
     public static String SECRET_MESSAGE = "secret_message";
     public static String DEFAULT_KEY_NAME = "default_key_name";
     
+    private static final String TAG = "FingerprintDialog";
+    private static final String SESSION_KEY_SUFFIX = "_session";
+    
+    // Single thread so that KeyStore access is never concurrent.
+    private static final ExecutorService sCryptoExecutor = Executors.newSingleThreadExecutor ();
+    private static final CipherPool sCipherPool = new CipherPool (4);
+    // Password hashing takes its whole time budget; keep it off the KeyStore thread.
+    private static final ExecutorService sPasswordExecutor = Executors.newSingleThreadExecutor ();
+    
+    private static final String PASSWORD_VERIFIER_FILE_NAME = "password_verifier.bin";
+    // Target duration of one password verification, which the PBKDF2 cost is calibrated to.
+    private static final long PASSWORD_VERIFY_BUDGET_MILLIS = 300;
+    private static final int REQUEST_CONFIRM_DEVICE_CREDENTIAL = 1;
+    // Past this, a tap prepares the cipher again rather than trust the probe. Enrolling a
+    // fingerprint sends the app to the background, so the probe on return is usually fresh.
+    private static final long KEY_PROBE_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis (2);
+    
     
     KeyStore keyStore;
     KeyGenerator keyGenerator;
+    FingerprintKeyManager keyManager;
     Cipher cipher;
     
     
     Button btPositive, btNeutral, btNegative;
     CheckBox cbFingerprintInFuture;
     
-    RelativeLayout rlFingerprint, rlPassword;
+    LinearLayout llFingerprint, llPassword;
     
     EditText etPassword;
     
     TextView tv2;
     
+    ProgressBar pbPassword;
+    
     
     private AuthenticationType authenticationType = AuthenticationType.FINGERPRINT;
+    private FingerprintDialogViews mViews;
+    private Context mViewsHost;
     
     private FingerprintManager.CryptoObject mCryptoObject;
     private FingerprintUiHelper mFingerprintUiHelper;
-    private MainActivity mActivity;
+    private AuthenticationListener mListener;
+    private Executor mListenerExecutor;
+    private OnDismissedListener mOnDismissedListener;
     
     private InputMethodManager mInputMethodManager;
-    private SharedPreferences mSharedPreferences;
+    private volatile FingerprintPreferences mPreferences;
+    private final Handler mMainHandler = new Handler (Looper.getMainLooper ());
+    private volatile PrepareTimings mWarmUpTimings;
+    private volatile KeyValidity mKeyValidity;
+    // The probe whose cipher initialization has not been used by a tap yet.
+    private final AtomicReference<KeyValidity> mPrimedProbe = new AtomicReference<> ();
+    private int mProbeHitCount;
+    private int mProbeMissCount;
+    
+    private int mSessionWindowSeconds;
+    private AuthSessionManager mSessionManager;
+    private volatile boolean mCipherInitialized;
+    // Set once the cipher has been handed to the listener, which owns it from then on.
+    private volatile boolean mCipherDelivered;
+    private TimingPolicy mTimingPolicy = TimingPolicy.DEFAULT;
+    private CryptoProfile mCryptoProfile = CryptoProfile.AES_CBC_PKCS7;
+    // Null to encrypt; otherwise the IV of the envelope the cipher is prepared to decrypt.
+    private volatile byte[] mDecryptionIv;
+    private volatile FingerprintAvailability mAvailability;
+    // Loaded on sPasswordExecutor, but hosts may ask whether a password is enrolled.
+    private final Object mPasswordVerifierLock = new Object ();
+    private PasswordVerifier mPasswordVerifier;
+    // Set from showFingerprintDialog until the listener is told the outcome.
+    private boolean mAuthenticationPending;
+    // Set while a password check is in flight, so that it is not started twice.
+    private boolean mVerifyingPassword;
+    // Set once the screen lock is confirmed, while the user chooses the backup password.
+    private boolean mChoosingPassword;
+    private RemotePasswordVerifier mRemotePasswordVerifier;
+    private RemotePasswordVerifier.Request mPasswordRequest;
+    private AuthMetrics mMetrics = NoOpAuthMetrics.INSTANCE;
+    // Start times of the timers in flight, from System.nanoTime(); zero when not running.
+    private long mTapNanos;
+    private long mShowNanos;
+    private long mPasswordShownNanos;
+    private volatile long mSucceededNanos;
     
     
     @Override
@@ -106,10 +184,19 @@ public class FingerprintDialog extends DialogFragment {
     
     @Override
     public View onCreateView (LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        long start = System.nanoTime ();
         getDialog ().setTitle (getString (R.string.sign_in));
-        View v = inflater.inflate (R.layout.fingerprint_dialog, container, false);
+        boolean preInflated = mViews != null;
+        if (preInflated) {
+            mViews.detach ();
+        } else {
+            mViews = new FingerprintDialogViews (
+                    inflater.inflate (R.layout.fingerprint_dialog, container, false));
+            mViewsHost = getActivity ();
+        }
+        View v = mViews.root;
         
-        initView (v);
+        initView (mViews);
         
         btNegative.setOnClickListener (new View.OnClickListener () {
             @Override
@@ -128,22 +215,13 @@ public class FingerprintDialog extends DialogFragment {
                 }
             }
         });
-        etPassword.setOnEditorActionListener (new TextView.OnEditorActionListener () {
-            @Override
-            public boolean onEditorAction (TextView v, int actionId, KeyEvent event) {
-                if (actionId == EditorInfo.IME_ACTION_GO) {
-                    verifyPassword ();
-                    return true;
-                }
-                return false;
-            }
-        });
         
         mFingerprintUiHelper = new FingerprintUiHelper (
-                mActivity.getSystemService (FingerprintManager.class),
-                (ImageView) v.findViewById (R.id.ivIcon),
-                (TextView) v.findViewById (R.id.tvMessage));
-        
+                getActivity ().getSystemService (FingerprintManager.class),
+                getAvailability (getActivity ()),
+                mViews.tvMessage);
+        // A reused view hierarchy still shows the state the previous authentication left it in.
+        mFingerprintUiHelper.resetMessage ();
         
         updateAuthenticationType ();
         
@@ -152,18 +230,89 @@ public class FingerprintDialog extends DialogFragment {
         if (! mFingerprintUiHelper.isFingerprintAuthAvailable ()) {
             showPasswordLayout ();
         }
+        Log.d (TAG, "onCreateView took " + TimeUnit.NANOSECONDS.toMicros (System.nanoTime () - start)
+                + "us, " + (preInflated ? "pre-inflated" : "inflated"));
+        v.getViewTreeObserver ().addOnPreDrawListener (mFirstFrameListener);
         return v;
     }
     
-    public void initView(View v){
-        btPositive = (Button) v.findViewById (R.id.btPositive);
-        btNegative = (Button) v.findViewById (R.id.btNegative);
-        btNeutral = (Button) v.findViewById (R.id.btNeutral);
-        cbFingerprintInFuture = (CheckBox) v.findViewById (R.id.cbFingerprintInFuture);
-        rlFingerprint = (RelativeLayout) v.findViewById (R.id.rlFingerprint);
-        rlPassword = (RelativeLayout) v.findViewById (R.id.rlPassword);
-        etPassword = (EditText) v.findViewById (R.id.etPassword);
-        tv2 = (TextView) v.findViewById (R.id.tv2);
+    public void initView(FingerprintDialogViews views){
+        btPositive = views.btPositive;
+        btNegative = views.btNegative;
+        btNeutral = views.btNeutral;
+        llFingerprint = views.llFingerprint;
+        if (views.isPasswordInflated ()) {
+            initPasswordView (views);
+        } else {
+            llPassword = null;
+            cbFingerprintInFuture = null;
+            etPassword = null;
+            tv2 = null;
+            pbPassword = null;
+        }
+    }
+    
+    /**
+     * Binds the password section, which is only inflated once it is first shown.
+     */
+    private void initPasswordView (FingerprintDialogViews views) {
+        llPassword = views.llPassword;
+        cbFingerprintInFuture = views.cbFingerprintInFuture;
+        etPassword = views.etPassword;
+        tv2 = views.tv2;
+        pbPassword = views.pbPassword;
+        etPassword.setOnEditorActionListener (new TextView.OnEditorActionListener () {
+            @Override
+            public boolean onEditorAction (TextView v, int actionId, KeyEvent event) {
+                if (actionId == EditorInfo.IME_ACTION_GO) {
+                    verifyPassword ();
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+    
+    /**
+     * Logs the measure and layout cost of the dialog once its first frame is about to be drawn.
+     */
+    private final ViewTreeObserver.OnPreDrawListener mFirstFrameListener = new ViewTreeObserver.OnPreDrawListener () {
+        @Override
+        public boolean onPreDraw () {
+            FingerprintDialogLayout root = mViews.root;
+            root.getViewTreeObserver ().removeOnPreDrawListener (this);
+            if (mShowNanos != 0) {
+                mMetrics.record (AuthMetrics.DIALOG_FIRST_FRAME, System.nanoTime () - mShowNanos);
+                mShowNanos = 0;
+            }
+            Log.d (TAG, "First frame: measure " + TimeUnit.NANOSECONDS.toMicros (root.getLastMeasureNanos ())
+                    + "us (" + root.getMeasureCount () + " passes), layout "
+                    + TimeUnit.NANOSECONDS.toMicros (root.getLastLayoutNanos ()) + "us");
+            return true;
+        }
+    };
+    
+    /**
+     * Inflates the dialog layout in the background ahead of the first show, e.g. when the host
+     * is idle. The inflated views are then reused by every show for the same activity.
+     * Optional; without it the layout is inflated on the first show.
+     */
+    public void preInflate (final Context context) {
+        if (mViews != null && mViewsHost == context) {
+            return;
+        }
+        // Inflate with the theme the dialog is shown with.
+        Context themedContext = new ContextThemeWrapper (context, android.R.style.Theme_Material_Light_Dialog);
+        new AsyncLayoutInflater (themedContext).inflate (R.layout.fingerprint_dialog, null,
+                new AsyncLayoutInflater.OnInflateFinishedListener () {
+                    @Override
+                    public void onInflateFinished (View view, int resid, ViewGroup parent) {
+                        if (mViews == null || mViewsHost != context) {
+                            mViews = new FingerprintDialogViews (view);
+                            mViewsHost = context;
+                        }
+                    }
+                });
     }
     
     public void initListener(){
@@ -175,7 +324,9 @@ public class FingerprintDialog extends DialogFragment {
     public void onResume () {
         super.onResume ();
         if (authenticationType == AuthenticationType.FINGERPRINT) {
-            mFingerprintUiHelper.startListening (mCryptoObject);
+            // Validity-duration keys are authorized by the authentication itself, and cannot be
+            // wrapped in a CryptoObject before it happened.
+            mFingerprintUiHelper.startListening (isSessionMode () ? null : mCryptoObject);
         }
     }
     
@@ -192,9 +343,17 @@ public class FingerprintDialog extends DialogFragment {
     @Override
     public void onAttach (Context context) {
         super.onAttach (context);
-        mActivity = (MainActivity) getActivity ();
+        if (context instanceof AuthenticationListener
+                && (mListener == null || mListener instanceof Activity)) {
+            // The dialog is retained, so report to the re-created activity rather than the old one.
+            mListener = (AuthenticationListener) context;
+        }
+        if (mViews != null && mViewsHost != context) {
+            // The views belong to the activity they were inflated for, which has been re-created.
+            mViews = null;
+        }
         mInputMethodManager = context.getSystemService (InputMethodManager.class);
-        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences (context);
+        getPreferences (context);
     }
     
     /**
@@ -211,6 +370,7 @@ public class FingerprintDialog extends DialogFragment {
      */
     private void showPasswordLayout () {
         authenticationType = AuthenticationType.PASSWORD;
+        mPasswordShownNanos = System.nanoTime ();
         updateAuthenticationType ();
         etPassword.requestFocus ();
         // Show the keyboard.
@@ -221,36 +381,507 @@ public class FingerprintDialog extends DialogFragment {
     }
     
     /**
-     * Checks whether the current entered password is correct, and dismisses the the dialog and
-     * let's the activity know about the result.
+     * Checks whether the current entered password is correct on a background thread, showing
+     * progress meanwhile, then dismisses the the dialog and let's the activity know about the
+     * result.
      */
     private void verifyPassword () {
-        if (! checkPassword (etPassword.getText ().toString ())) {
+        if (mVerifyingPassword || etPassword.length () == 0) {
+            return;
+        }
+        final char[] password = etPassword.getText ().toString ().toCharArray ();
+        if (mRemotePasswordVerifier != null) {
+            setVerifyingPassword (true);
+            try {
+                mPasswordRequest = mRemotePasswordVerifier.verify (password, mRemotePasswordCallback);
+            } catch (RejectedExecutionException e) {
+                // Too many verifications in flight; the verifier has cleared the password.
+                Log.w (TAG, "Password verification rejected", e);
+                setVerifyingPassword (false);
+                etPassword.setError (getString (R.string.password_server_unreachable));
+            }
+            return;
+        }
+        if (mChoosingPassword) {
+            setVerifyingPassword (true);
+            enrollPassword (getActivity (), password, mChosenPasswordCallback);
+            return;
+        }
+        final File verifierFile = getPasswordVerifierFile (getActivity ());
+        setVerifyingPassword (true);
+        sPasswordExecutor.execute (new Runnable () {
+            @Override
+            public void run () {
+                final PasswordCheck check = checkPassword (password, verifierFile);
+                Arrays.fill (password, '\0');
+                mMainHandler.post (new Runnable () {
+                    @Override
+                    public void run () {
+                        onPasswordChecked (check);
+                    }
+                });
+            }
+        });
+    }
+    
+    private final RemotePasswordVerifier.Callback mRemotePasswordCallback = new RemotePasswordVerifier.Callback () {
+        @Override
+        public void onVerified (final boolean correct) {
+            mMainHandler.post (new Runnable () {
+                @Override
+                public void run () {
+                    mPasswordRequest = null;
+                    onPasswordChecked (correct ? PasswordCheck.CORRECT : PasswordCheck.INCORRECT);
+                }
+            });
+        }
+        
+        @Override
+        public void onFailed (final IOException e) {
+            Log.w (TAG, "Failed to verify the password with the server", e);
+            mMainHandler.post (new Runnable () {
+                @Override
+                public void run () {
+                    mPasswordRequest = null;
+                    setVerifyingPassword (false);
+                    if (isAdded ()) {
+                        etPassword.setError (getString (R.string.password_server_unreachable));
+                    }
+                }
+            });
+        }
+    };
+    
+    /**
+     * Verifies the backup password with the server rather than against the local hash. Pass null
+     * to go back to the local verification, the default.
+     */
+    public void setRemotePasswordVerifier (@Nullable RemotePasswordVerifier verifier) {
+        mRemotePasswordVerifier = verifier;
+    }
+    
+    @Override
+    public void onDismiss (DialogInterface dialog) {
+        super.onDismiss (dialog);
+        Activity activity = getActivity ();
+        if (activity != null && activity.isChangingConfigurations ()) {
+            // The retained dialog is shown again by the new activity, and the authentication goes on.
+            return;
+        }
+        if (mAuthenticationPending) {
+            mAuthenticationPending = false;
+            deliverCancellation ();
+        }
+        mChoosingPassword = false;
+        if (mPasswordRequest != null) {
+            // Nobody is waiting for the answer anymore.
+            mPasswordRequest.cancel ();
+            mPasswordRequest = null;
+            setVerifyingPassword (false);
+        }
+        notifyDismissed ();
+    }
+    
+    private void setVerifyingPassword (boolean verifying) {
+        mVerifyingPassword = verifying;
+        etPassword.setEnabled (! verifying);
+        pbPassword.setVisibility (verifying ? View.VISIBLE : View.GONE);
+    }
+    
+    private void onPasswordChecked (PasswordCheck check) {
+        setVerifyingPassword (false);
+        if (! isAdded ()) {
+            // Dismissed while the password was being checked.
+            return;
+        }
+        if (check == PasswordCheck.NOT_ENROLLED) {
+            confirmDeviceCredential ();
+            return;
+        }
+        if (check == PasswordCheck.INCORRECT) {
+            etPassword.setError (getString (R.string.password_incorrect));
             return;
         }
         if (authenticationType == AuthenticationType.NEW_FINGERPRINT_ENROLLED) {
-            SharedPreferences.Editor editor = mSharedPreferences.edit ();
-            editor.putBoolean (getString (R.string.use_fingerprint_to_authenticate_key), cbFingerprintInFuture.isChecked ());
-            editor.apply ();
+            // Written under the same key showFingerprintDialog reads, so that the choice is honored.
+            mPreferences.setUseFingerprint (cbFingerprintInFuture.isChecked ());
             
             if (cbFingerprintInFuture.isChecked ()) {
-                // Re-create the key so that fingerprints including new ones are validated.
-                createKey (DEFAULT_KEY_NAME);
-                authenticationType = AuthenticationType.FINGERPRINT;
+                // Re-create the key so that fingerprints including new ones are validated. This
+                // is KeyStore work: do it on the crypto thread, with the progress shown meanwhile.
+                setVerifyingPassword (true);
+                sCryptoExecutor.execute (mRecreateKeyRunnable);
+                return;
+            }
+        }
+        onPasswordAuthenticated ();
+    }
+    
+    private final Runnable mRecreateKeyRunnable = new Runnable () {
+        @Override
+        public void run () {
+            try {
+                createKey (getKeyName ());
+            } catch (final RuntimeException e) {
+                // Surface the failure on the main thread, as it was before re-creating async.
+                mMainHandler.post (new Runnable () {
+                    @Override
+                    public void run () {
+                        throw e;
+                    }
+                });
+                return;
             }
+            mMainHandler.post (mKeyRecreatedRunnable);
         }
+    };
+    
+    private final Runnable mKeyRecreatedRunnable = new Runnable () {
+        @Override
+        public void run () {
+            setVerifyingPassword (false);
+            if (! isAdded ()) {
+                // Dismissed while the key was being re-created.
+                return;
+            }
+            authenticationType = AuthenticationType.FINGERPRINT;
+            onPasswordAuthenticated ();
+        }
+    };
+    
+    private void onPasswordAuthenticated () {
         etPassword.setText ("");
-        mActivity.onSuccessfulAuthentication (false /* without Fingerprint */, null);
+        if (mPasswordShownNanos != 0) {
+            mMetrics.record (AuthMetrics.PASSWORD_FALLBACK, System.nanoTime () - mPasswordShownNanos);
+            mPasswordShownNanos = 0;
+        }
+        deliverResult (false /* without Fingerprint */, null);
         dismiss ();
     }
     
     /**
-     * @return true if {@code password} is correct, false otherwise
+     * Lets the user set up the backup password, after proving with the screen lock that the
+     * device is theirs. This is the way in when no password was ever enrolled, or when its
+     * verifier could not be read, e.g. after a new fingerprint invalidated the key.
+     */
+    private void confirmDeviceCredential () {
+        etPassword.setText ("");
+        KeyguardManager keyguardManager = getActivity ().getSystemService (KeyguardManager.class);
+        Intent intent = keyguardManager.createConfirmDeviceCredentialIntent (
+                getString (R.string.choose_password_title), getString (R.string.choose_password_description));
+        if (intent == null) {
+            // No secure lock screen, so nothing to prove it with.
+            etPassword.setError (getString (R.string.password_not_enrolled));
+            return;
+        }
+        startActivityForResult (intent, REQUEST_CONFIRM_DEVICE_CREDENTIAL);
+    }
+    
+    @Override
+    public void onActivityResult (int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_CONFIRM_DEVICE_CREDENTIAL) {
+            super.onActivityResult (requestCode, resultCode, data);
+            return;
+        }
+        if (! isAdded () || etPassword == null) {
+            // Dismissed while the screen lock was being confirmed.
+            return;
+        }
+        if (resultCode != Activity.RESULT_OK) {
+            etPassword.setError (getString (R.string.password_not_enrolled));
+            return;
+        }
+        mChoosingPassword = true;
+        tv2.setText (R.string.choose_password_prompt);
+        etPassword.requestFocus ();
+    }
+    
+    private final PasswordEnrollmentCallback mChosenPasswordCallback = new PasswordEnrollmentCallback () {
+        @Override
+        public void onPasswordEnrolled () {
+            mChoosingPassword = false;
+            onPasswordChecked (PasswordCheck.CORRECT);
+        }
+        
+        @Override
+        public void onPasswordEnrollmentFailed (Exception e) {
+            setVerifyingPassword (false);
+            if (isAdded ()) {
+                etPassword.setError (getString (R.string.password_enrollment_failed));
+            }
+        }
+    };
+    
+    private enum PasswordCheck {
+        CORRECT,
+        INCORRECT,
+        // No password was enrolled with enrollPassword, or its verifier could not be read.
+        NOT_ENROLLED
+    }
+    
+    @WorkerThread
+    private PasswordCheck checkPassword (char[] password, File verifierFile) {
+        // In the real world situation, the password may need to be verified in the server side.
+        long start = System.nanoTime ();
+        PasswordVerifier verifier = loadPasswordVerifier (verifierFile);
+        if (verifier == null) {
+            return PasswordCheck.NOT_ENROLLED;
+        }
+        try {
+            boolean correct = verifier.verify (password);
+            Log.d (TAG, "Password verified with " + verifier.getIterations () + " iterations in "
+                    + TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start) + "ms");
+            return correct ? PasswordCheck.CORRECT : PasswordCheck.INCORRECT;
+        } catch (GeneralSecurityException e) {
+            Log.e (TAG, "Failed to check the password", e);
+            return PasswordCheck.INCORRECT;
+        }
+    }
+    
+    /**
+     * @return the enrolled verifier, or null if there is none. An unreadable verifier file is
+     * deleted, so that the password can be enrolled again instead of every password being
+     * rejected from then on.
+     */
+    @WorkerThread
+    @Nullable
+    private PasswordVerifier loadPasswordVerifier (File verifierFile) {
+        synchronized (mPasswordVerifierLock) {
+            if (mPasswordVerifier == null && verifierFile.exists ()) {
+                try {
+                    mPasswordVerifier = PasswordVerifier.readFrom (verifierFile);
+                } catch (IOException e) {
+                    Log.w (TAG, "Discarding unreadable " + verifierFile, e);
+                    verifierFile.delete ();
+                }
+            }
+            return mPasswordVerifier;
+        }
+    }
+    
+    private static File getPasswordVerifierFile (Context context) {
+        return new File (context.getNoBackupFilesDir (), PASSWORD_VERIFIER_FILE_NAME);
+    }
+    
+    /**
+     * @return true if a backup password has been enrolled with {@link #enrollPassword}. Reads
+     * the verifier from disk the first time.
+     */
+    @WorkerThread
+    public boolean isPasswordEnrolled (Context context) {
+        return loadPasswordVerifier (getPasswordVerifierFile (context)) != null;
+    }
+    
+    /**
+     * Callback for {@link #enrollPassword}, invoked on the main thread.
+     */
+    public interface PasswordEnrollmentCallback {
+        void onPasswordEnrolled ();
+        
+        void onPasswordEnrollmentFailed (Exception e);
+    }
+    
+    /**
+     * Sets up {@code password} as the backup password checked by the dialog, replacing any
+     * previous one, then clears {@code password}. The cost of the hash is calibrated on this
+     * device first, so this takes a few times the verification budget, on a background thread.
+     * <p>
+     * Until a password is enrolled, the password screen has the user confirm the screen lock,
+     * then choose one. Hosts can enroll it themselves at a deliberate step instead, e.g. once the
+     * user has signed in with the server. Never enroll whatever is typed first: that would let
+     * anyone past the dialog once a new fingerprint has invalidated the key.
+     */
+    public void enrollPassword (Context context, final char[] password,
+                                final PasswordEnrollmentCallback callback) {
+        final File verifierFile = getPasswordVerifierFile (context);
+        sPasswordExecutor.execute (new Runnable () {
+            @Override
+            public void run () {
+                long start = System.nanoTime ();
+                try {
+                    int iterations = PasswordVerifier.calibrate (PASSWORD_VERIFY_BUDGET_MILLIS);
+                    PasswordVerifier verifier = PasswordVerifier.enroll (password, iterations);
+                    synchronized (mPasswordVerifierLock) {
+                        verifier.writeTo (verifierFile);
+                        mPasswordVerifier = verifier;
+                    }
+                    Log.d (TAG, "Password enrolled with " + iterations + " iterations in "
+                            + TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start) + "ms");
+                } catch (final IOException | GeneralSecurityException e) {
+                    Log.e (TAG, "Failed to enroll the password", e);
+                    mMainHandler.post (new Runnable () {
+                        @Override
+                        public void run () {
+                            callback.onPasswordEnrollmentFailed (e);
+                        }
+                    });
+                    return;
+                } finally {
+                    Arrays.fill (password, '\0');
+                }
+                mMainHandler.post (new Runnable () {
+                    @Override
+                    public void run () {
+                        callback.onPasswordEnrolled ();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Hands the authenticated crypto object to the activity. In session mode the cipher could
+     * not be initialized before the authentication, so this is done first.
+     *
+     * @param dismiss whether to dismiss the dialog once the result is delivered
      */
-    private boolean checkPassword (String password) {
-        // Assume the password is always correct.
-        // In the real world situation, the password needs to be verified in the server side.
-        return password.length () > 0;
+    private void onFingerprintAuthenticated (final boolean dismiss) {
+        if (isSessionMode ()) {
+            mSessionManager.recordAuthentication ();
+            if (! mCipherInitialized) {
+                prepareAsync (new PrepareCallback () {
+                    @Override
+                    public void onPrepared (boolean keyValid, PrepareTimings timings) {
+                        if (mCipherInitialized) {
+                            deliverFingerprintResult (dismiss);
+                        } else if (isAdded ()) {
+                            showPasswordLayout ();
+                        }
+                    }
+                });
+                return;
+            }
+        }
+        deliverFingerprintResult (dismiss);
+    }
+    
+    private void deliverFingerprintResult (boolean dismiss) {
+        deliverResult (true /* withFingerprint */, mCryptoObject);
+        if (dismiss) {
+            dismiss ();
+        }
+    }
+    
+    /**
+     * Receives the outcome of an authentication.
+     */
+    public interface AuthenticationListener {
+        /**
+         * @param withFingerprint true if the user authenticated with a fingerprint, false if
+         *                        with the backup password
+         * @param cryptoObject    the authenticated crypto object, or null without fingerprint
+         */
+        void onSuccessfulAuthentication (boolean withFingerprint, @Nullable FingerprintManager.CryptoObject cryptoObject);
+        
+        /**
+         * Called when the dialog went away without the user authenticating, or could not be shown.
+         */
+        void onAuthenticationCancelled ();
+    }
+    
+    /**
+     * Told when an authentication is over on the screen, so that the dialog can be shown again.
+     */
+    public interface OnDismissedListener {
+        /**
+         * Called on the main thread once the dialog is gone, after its outcome was delivered or
+         * with it being delivered. Also called when an authentication ended without the dialog
+         * being shown, e.g. within a session window. Not called when the dialog is only re-created
+         * for a configuration change.
+         */
+        void onDismissed ();
+    }
+    
+    public void setOnDismissedListener (@Nullable OnDismissedListener listener) {
+        mOnDismissedListener = listener;
+    }
+    
+    private void notifyDismissed () {
+        if (mOnDismissedListener != null) {
+            mOnDismissedListener.onDismissed ();
+        }
+    }
+    
+    /**
+     * Sets the listener the result is reported to. Without one, the host activity is used if it
+     * implements {@link AuthenticationListener}.
+     *
+     * @param executor the executor the listener is called on, e.g. to do the crypto work and
+     *                 network calls off the main thread; null to call it on the main thread
+     */
+    public void setAuthenticationListener (AuthenticationListener listener, @Nullable Executor executor) {
+        mListener = listener;
+        mListenerExecutor = executor;
+    }
+    
+    private void deliverResult (final boolean withFingerprint,
+                                @Nullable final FingerprintManager.CryptoObject cryptoObject) {
+        mAuthenticationPending = false;
+        if (cryptoObject != null) {
+            mCipherDelivered = true;
+        }
+        final AuthenticationListener listener = mListener;
+        if (listener == null) {
+            Log.w (TAG, "No AuthenticationListener to deliver the result to");
+            return;
+        }
+        if (mListenerExecutor == null) {
+            recordSuccessToCallback ();
+            listener.onSuccessfulAuthentication (withFingerprint, cryptoObject);
+            return;
+        }
+        mListenerExecutor.execute (new Runnable () {
+            @Override
+            public void run () {
+                recordSuccessToCallback ();
+                listener.onSuccessfulAuthentication (withFingerprint, cryptoObject);
+            }
+        });
+    }
+    
+    private void deliverCancellation () {
+        final AuthenticationListener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        if (mListenerExecutor == null) {
+            listener.onAuthenticationCancelled ();
+            return;
+        }
+        mListenerExecutor.execute (new Runnable () {
+            @Override
+            public void run () {
+                listener.onAuthenticationCancelled ();
+            }
+        });
+    }
+    
+    private void recordSuccessToCallback () {
+        long succeededNanos = mSucceededNanos;
+        if (succeededNanos != 0) {
+            mSucceededNanos = 0;
+            mMetrics.record (AuthMetrics.SUCCESS_TO_CALLBACK, System.nanoTime () - succeededNanos);
+        }
+    }
+    
+    /**
+     * Sets the delays of the dialog around an authentication result. Defaults to
+     * {@link TimingPolicy#DEFAULT}.
+     */
+    public void setTimingPolicy (TimingPolicy timingPolicy) {
+        mTimingPolicy = timingPolicy;
+    }
+    
+    /**
+     * Sets where the timings of the authentication flow are recorded. Defaults to
+     * {@link NoOpAuthMetrics}.
+     */
+    public void setMetrics (AuthMetrics metrics) {
+        mMetrics = metrics;
+    }
+    
+    public AuthMetrics getMetrics () {
+        return mMetrics;
     }
     
     private final Runnable mShowKeyboardRunnable = new Runnable () {
@@ -264,20 +895,30 @@ public class FingerprintDialog extends DialogFragment {
         switch (authenticationType) {
             case FINGERPRINT:
                 btNeutral.setText ("PASSWORD");
-                rlFingerprint.setVisibility (View.VISIBLE);
-                rlPassword.setVisibility (View.GONE);
+                btNeutral.setEnabled (true);
+                llFingerprint.setVisibility (View.VISIBLE);
+                if (llPassword != null) {
+                    cbFingerprintInFuture.setVisibility (View.GONE);
+                    llPassword.setVisibility (View.GONE);
+                }
                 break;
             case NEW_FINGERPRINT_ENROLLED:
                 // Intentional fall through
             case PASSWORD:
+                if (mViews.inflatePassword ()) {
+                    initPasswordView (mViews);
+                }
                 btNeutral.setText ("FINGERPRINT");
                 tv2.setText ("Enter password to continue");
-                rlFingerprint.setVisibility (View.GONE);
-                rlPassword.setVisibility (View.VISIBLE);
+                llFingerprint.setVisibility (View.GONE);
+                llPassword.setVisibility (View.VISIBLE);
                 if (authenticationType == AuthenticationType.NEW_FINGERPRINT_ENROLLED) {
                     btNeutral.setEnabled (false);
                     tv2.setText ("New fingerprint enrolled, password compulsory");
                     cbFingerprintInFuture.setVisibility (View.VISIBLE);
+                } else {
+                    btNeutral.setEnabled (true);
+                    cbFingerprintInFuture.setVisibility (View.GONE);
                 }
                 break;
         }
@@ -291,31 +932,58 @@ public class FingerprintDialog extends DialogFragment {
     
     public class FingerprintUiHelper extends FingerprintManager.AuthenticationCallback {
         
-        private static final long ERROR_TIMEOUT_MILLIS = 1600;
-        private static final long SUCCESS_DELAY_MILLIS = 1300;
-        
         private final FingerprintManager mFingerprintManager;
-        private final ImageView mIcon;
+        private final FingerprintAvailability mAvailability;
         private final TextView mErrorTextView;
         private CancellationSignal mCancellationSignal;
         
         private boolean mSelfCancelled;
+        // When startListening was called, until the first callback from the sensor; else zero.
+        private long mListeningNanos;
+        
+        // Resolved once, as help and failure messages can arrive several times per second while
+        // a finger is on the sensor.
+        private final int mHintColor;
+        private final int mWarningColor;
+        private final int mSuccessColor;
+        private final String mHintText;
+        private final String mNotRecognizedText;
+        private final String mSuccessText;
+        private final Drawable mFingerprintIcon;
+        private final Drawable mErrorIcon;
+        private final Drawable mSuccessIcon;
+        
+        // Help and failure messages arriving within one frame are folded into the last of them.
+        private final Choreographer mChoreographer;
+        private CharSequence mPendingError;
+        private CharSequence mShownError;
+        private boolean mFrameScheduled;
+        private int mCoalescedCount;
         
         /**
          * Constructor for {@link FingerprintUiHelper}.
          */
-        FingerprintUiHelper (FingerprintManager fingerprintManager,
-                             ImageView icon, TextView errorTextView) {
+        FingerprintUiHelper (FingerprintManager fingerprintManager, FingerprintAvailability availability,
+                             TextView errorTextView) {
             mFingerprintManager = fingerprintManager;
-            mIcon = icon;
+            mAvailability = availability;
             mErrorTextView = errorTextView;
+            
+            Context context = errorTextView.getContext ();
+            mHintColor = context.getColor (R.color.hint_color);
+            mWarningColor = context.getColor (R.color.warning_color);
+            mSuccessColor = context.getColor (R.color.success_color);
+            mHintText = context.getString (R.string.fingerprint_hint);
+            mNotRecognizedText = context.getString (R.string.fingerprint_not_recognized);
+            mSuccessText = context.getString (R.string.fingerprint_success);
+            mFingerprintIcon = context.getDrawable (R.drawable.ic_fp_40px);
+            mErrorIcon = context.getDrawable (R.drawable.ic_fingerprint_error);
+            mSuccessIcon = context.getDrawable (R.drawable.ic_fingerprint_success);
+            mChoreographer = Choreographer.getInstance ();
         }
         
         public boolean isFingerprintAuthAvailable () {
-            // The line below prevents the false positive inspection from Android Studio
-            // noinspection ResourceType
-            return mFingerprintManager.isHardwareDetected ()
-                    && mFingerprintManager.hasEnrolledFingerprints ();
+            return mAvailability.isFingerprintAuthAvailable ();
         }
         
         public void startListening (FingerprintManager.CryptoObject cryptoObject) {
@@ -324,11 +992,12 @@ public class FingerprintDialog extends DialogFragment {
             }
             mCancellationSignal = new CancellationSignal ();
             mSelfCancelled = false;
+            mListeningNanos = System.nanoTime ();
             // The line below prevents the false positive inspection from Android Studio
             // noinspection ResourceType
             mFingerprintManager
                     .authenticate (cryptoObject, mCancellationSignal, 0 /* flags */, this, null);
-            mIcon.setImageResource (R.drawable.ic_fp_40px);
+            setIcon (mFingerprintIcon);
         }
         
         public void stopListening () {
@@ -337,103 +1006,258 @@ public class FingerprintDialog extends DialogFragment {
                 mCancellationSignal.cancel ();
                 mCancellationSignal = null;
             }
+            cancelPendingError ();
+            if (mCoalescedCount > 0) {
+                Log.d (TAG, "Coalesced " + mCoalescedCount + " fingerprint message updates");
+            }
+        }
+        
+        /**
+         * @return how many help or failure messages were not drawn, because a newer one arrived
+         * within the same frame or the same message was already shown
+         */
+        public int getCoalescedCount () {
+            return mCoalescedCount;
         }
         
         @Override
         public void onAuthenticationError (int errMsgId, CharSequence errString) {
+            recordFirstSensorCallback ();
             if (! mSelfCancelled) {
                 showError (errString);
-                mIcon.postDelayed (new Runnable () {
-                    @Override
-                    public void run () {
-                        onError ();
-                    }
-                }, ERROR_TIMEOUT_MILLIS);
+                mErrorTextView.postDelayed (mErrorRunnable, mTimingPolicy.getFallbackDelayMillis ());
             }
         }
         
         @Override
         public void onAuthenticationHelp (int helpMsgId, CharSequence helpString) {
+            recordFirstSensorCallback ();
             showError (helpString);
         }
         
         @Override
         public void onAuthenticationFailed () {
-            showError (mIcon.getResources ().getString (
-                    R.string.fingerprint_not_recognized));
+            recordFirstSensorCallback ();
+            showError (mNotRecognizedText);
         }
         
         @Override
         public void onAuthenticationSucceeded (FingerprintManager.AuthenticationResult result) {
+            mSucceededNanos = System.nanoTime ();
+            recordFirstSensorCallback ();
+            cancelPendingError ();
             mErrorTextView.removeCallbacks (mResetErrorTextRunnable);
-            mIcon.setImageResource (R.drawable.ic_fingerprint_success);
-            mErrorTextView.setTextColor (
-                    mErrorTextView.getResources ().getColor (R.color.success_color, null));
-            mErrorTextView.setText (
-                    mErrorTextView.getResources ().getString (R.string.fingerprint_success));
-            mIcon.postDelayed (new Runnable () {
-                @Override
-                public void run () {
-                    onAuthenticated ();
-                }
-            }, SUCCESS_DELAY_MILLIS);
+            setIcon (mSuccessIcon);
+            mErrorTextView.setTextColor (mSuccessColor);
+            mErrorTextView.setText (mSuccessText);
+            if (mTimingPolicy.isDeliverImmediately ()) {
+                // The success icon stays up for the delay while the activity already has the result.
+                onFingerprintAuthenticated (false /* dismiss */);
+                mErrorTextView.postDelayed (mDismissRunnable, mTimingPolicy.getSuccessDelayMillis ());
+            } else {
+                mErrorTextView.postDelayed (mAuthenticatedRunnable, mTimingPolicy.getSuccessDelayMillis ());
+            }
         }
         
+        /**
+         * Shows the message on the next frame. Bursts from the sensor, such as "finger moved too
+         * fast" followed by "partial fingerprint", end up as a single update.
+         */
         private void showError (CharSequence error) {
-            mIcon.setImageResource (R.drawable.ic_fingerprint_error);
-            mErrorTextView.setText (error);
-            mErrorTextView.setTextColor (
-                    mErrorTextView.getResources ().getColor (R.color.warning_color, null));
-            mErrorTextView.removeCallbacks (mResetErrorTextRunnable);
-            mErrorTextView.postDelayed (mResetErrorTextRunnable, ERROR_TIMEOUT_MILLIS);
+            if (mFrameScheduled) {
+                mCoalescedCount++;
+            } else {
+                mFrameScheduled = true;
+                mChoreographer.postFrameCallback (mShowErrorFrameCallback);
+            }
+            mPendingError = error;
+        }
+        
+        private void cancelPendingError () {
+            if (mFrameScheduled) {
+                mChoreographer.removeFrameCallback (mShowErrorFrameCallback);
+                mFrameScheduled = false;
+            }
+            mPendingError = null;
         }
+        
+        private final Choreographer.FrameCallback mShowErrorFrameCallback = new Choreographer.FrameCallback () {
+            @Override
+            public void doFrame (long frameTimeNanos) {
+                mFrameScheduled = false;
+                CharSequence error = mPendingError;
+                mPendingError = null;
+                if (TextUtils.equals (error, mShownError)) {
+                    // Already on screen; only keep it there for longer.
+                    mCoalescedCount++;
+                } else {
+                    mShownError = error;
+                    setIcon (mErrorIcon);
+                    mErrorTextView.setText (error);
+                    mErrorTextView.setTextColor (mWarningColor);
+                }
+                mErrorTextView.removeCallbacks (mResetErrorTextRunnable);
+                mErrorTextView.postDelayed (mResetErrorTextRunnable, mTimingPolicy.getErrorResetMillis ());
+            }
+        };
     
+        private void recordFirstSensorCallback () {
+            if (mListeningNanos != 0) {
+                mMetrics.record (AuthMetrics.FIRST_SENSOR_CALLBACK, System.nanoTime () - mListeningNanos);
+                mListeningNanos = 0;
+            }
+        }
+        
         void onAuthenticated (){
-            mActivity.onSuccessfulAuthentication (true /* withFingerprint */, mCryptoObject);
-            dismiss ();
+            onFingerprintAuthenticated (true /* dismiss */);
         }
     
         void onError (){
             showPasswordLayout ();
         }
         
-        private Runnable mResetErrorTextRunnable = new Runnable () {
+        /**
+         * The icon is a compound drawable of the message, to keep the layout flat.
+         */
+        private void setIcon (Drawable icon) {
+            if (icon != mErrorIcon) {
+                mShownError = null;
+            }
+            mErrorTextView.setCompoundDrawablesRelativeWithIntrinsicBounds (icon, null, null, null);
+        }
+        
+        /**
+         * Shows the hint again, in place of any result message.
+         */
+        void resetMessage () {
+            cancelPendingError ();
+            mErrorTextView.removeCallbacks (mResetErrorTextRunnable);
+            mResetErrorTextRunnable.run ();
+        }
+        
+        private final Runnable mResetErrorTextRunnable = new Runnable () {
             @Override
             public void run () {
-                mErrorTextView.setTextColor (
-                        mErrorTextView.getResources ().getColor (R.color.hint_color, null));
-                mErrorTextView.setText (
-                        mErrorTextView.getResources ().getString (R.string.fingerprint_hint));
-                mIcon.setImageResource (R.drawable.ic_fp_40px);
+                mShownError = null;
+                mErrorTextView.setTextColor (mHintColor);
+                mErrorTextView.setText (mHintText);
+                setIcon (mFingerprintIcon);
+            }
+        };
+        
+        private final Runnable mErrorRunnable = new Runnable () {
+            @Override
+            public void run () {
+                onError ();
+            }
+        };
+        
+        private final Runnable mAuthenticatedRunnable = new Runnable () {
+            @Override
+            public void run () {
+                onAuthenticated ();
+            }
+        };
+        
+        private final Runnable mDismissRunnable = new Runnable () {
+            @Override
+            public void run () {
+                dismiss ();
             }
         };
     }
     
+    @WorkerThread
     public void createKey (String keyName) {
         // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
         // for your flow. Use of keys is necessary if you need to know if the set of
         // enrolled fingerprints has changed.
-        try {
-            keyStore.load (null);
-            // Set the alias of the entry in Android KeyStore where the key will appear
-            // and the constrains (purposes) in the constructor of the Builder
-            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder (keyName,
-                    KeyProperties.PURPOSE_ENCRYPT |
-                            KeyProperties.PURPOSE_DECRYPT)
-                    .setBlockModes (KeyProperties.BLOCK_MODE_CBC)
-                    // Require the user to authenticate with a fingerprint to authorize every use of the key
-                    .setUserAuthenticationRequired (true)
-                    .setEncryptionPaddings (KeyProperties.ENCRYPTION_PADDING_PKCS7);
-            
-            keyGenerator.init (builder.build ());
-            keyGenerator.generateKey ();
-        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException
-                | CertificateException | IOException e) {
-            throw new RuntimeException (e);
+        long start = System.nanoTime ();
+        getKeyManager ().recreateKey ();
+        mMetrics.record (AuthMetrics.CREATE_KEY, System.nanoTime () - start);
+        // The cipher of the probe is bound to the old key: return it before the pool drops them.
+        discardPrimedProbe ();
+        sCipherPool.clear (keyName);
+    }
+    
+    /**
+     * Enables the authenticated-session mode: the key is created with a validity duration of
+     * {@code seconds}, and operations within that window after a successful authentication go
+     * ahead without showing the dialog. Zero, the default, requires a fingerprint for every use.
+     * <p>
+     * The session key is separate from the per-use key, so this must be called before the key
+     * is first used, i.e. before {@link #warmUp} or the first show.
+     */
+    public void setSessionWindowSeconds (int seconds) {
+        if (keyManager != null) {
+            throw new IllegalStateException ("The session window must be set before the key is used");
         }
+        mSessionWindowSeconds = seconds;
+        mSessionManager = seconds > 0 ? new AuthSessionManager (seconds, TimeUnit.SECONDS) : null;
     }
     
-    public boolean initDialog () {
+    /**
+     * Sets the transformation and parameters of the key. Defaults to
+     * {@link CryptoProfile#AES_CBC_PKCS7}. Each profile has its own key.
+     *
+     * @throws IllegalStateException if the key has already been used
+     */
+    public void setCryptoProfile (CryptoProfile cryptoProfile) {
+        if (keyManager != null) {
+            throw new IllegalStateException ("The crypto profile must be set before the key is used");
+        }
+        mCryptoProfile = cryptoProfile;
+    }
+    
+    public CryptoProfile getCryptoProfile () {
+        return mCryptoProfile;
+    }
+    
+    /**
+     * Prepares the next authentications to decrypt {@code envelope}: the authenticated cipher is
+     * initialized for decryption with its IV, and can be passed to {@link SecretEnvelope#open}.
+     * Pass null to go back to encrypting, the default.
+     */
+    public void setDecryptionEnvelope (@Nullable SecretEnvelope envelope) {
+        mDecryptionIv = envelope != null ? envelope.getIv () : null;
+    }
+    
+    /**
+     * @return true if the authenticated cipher is initialized for decryption
+     */
+    public boolean isDecrypting () {
+        return mDecryptionIv != null;
+    }
+    
+    /**
+     * @return the session manager, or null if the session mode is not enabled
+     */
+    @Nullable
+    public AuthSessionManager getSessionManager () {
+        return mSessionManager;
+    }
+    
+    private boolean isSessionMode () {
+        return mSessionManager != null;
+    }
+    
+    /**
+     * @return the alias of the key in use, which depends on whether session mode is enabled and
+     * on the crypto profile
+     */
+    public String getKeyName () {
+        String keyName = DEFAULT_KEY_NAME + mCryptoProfile.getKeyNameSuffix ();
+        return isSessionMode () ? keyName + SESSION_KEY_SUFFIX : keyName;
+    }
+    
+    /**
+     * @return the {@link FingerprintKeyManager} for {@link #getKeyName()}, creating it on
+     * first use. The key itself is only generated when it is missing or invalidated.
+     */
+    public FingerprintKeyManager getKeyManager () {
+        if (keyManager != null) {
+            return keyManager;
+        }
         try {
             keyStore = KeyStore.getInstance ("AndroidKeyStore");
         } catch (KeyStoreException e) {
@@ -444,34 +1268,358 @@ public class FingerprintDialog extends DialogFragment {
         } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
             throw new RuntimeException ("Failed to get an instance of KeyGenerator", e);
         }
-        try {
-            cipher = Cipher.getInstance (
-                    KeyProperties.KEY_ALGORITHM_AES + "/"
-                            + KeyProperties.BLOCK_MODE_CBC + "/"
-                            + KeyProperties.ENCRYPTION_PADDING_PKCS7);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new RuntimeException ("Failed to get an instance of Cipher", e);
+        keyManager = new FingerprintKeyManager (keyStore, keyGenerator, mKeyInitializer, getKeyName ());
+        return keyManager;
+    }
+    
+    private final FingerprintKeyManager.KeyInitializer mKeyInitializer = new FingerprintKeyManager.KeyInitializer () {
+        @Override
+        public void init (KeyGenerator keyGenerator, String keyName) throws InvalidAlgorithmParameterException {
+            // Set the alias of the entry in Android KeyStore where the key will appear
+            // and the constrains (purposes) in the constructor of the Builder
+            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder (keyName,
+                    mCryptoProfile.getPurposes ())
+                    .setBlockModes (mCryptoProfile.getBlockMode ())
+                    .setKeySize (mCryptoProfile.getKeySize ())
+                    // Require the user to authenticate with a fingerprint to authorize every use of the key
+                    .setUserAuthenticationRequired (true)
+                    .setEncryptionPaddings (mCryptoProfile.getPadding ());
+            if (isSessionMode ()) {
+                // One authentication authorizes every use of the key within the window.
+                builder.setUserAuthenticationValidityDurationSeconds (mSessionWindowSeconds);
+            }
+            
+            keyGenerator.init (builder.build ());
         }
-        createKey (DEFAULT_KEY_NAME);
+    };
+    
+    public boolean initDialog () {
+        return initDialog (new PrepareTimings ());
+    }
+    
+    /**
+     * Resolves the key and initializes the cipher, recording how long each stage took. This does
+     * KeyStore I/O and must not be called on the UI thread; see {@link #prepareAsync}.
+     *
+     * @return false if the key has been permanently invalidated, true otherwise
+     */
+    @WorkerThread
+    boolean initDialog (PrepareTimings timings) {
+        // The cipher is being prepared anew, so the probe is of no use anymore.
+        discardPrimedProbe ();
+        long start = System.nanoTime ();
+        FingerprintKeyManager keyManager = getKeyManager ();
+        long end = System.nanoTime ();
+        timings.keyStoreNanos = end - start;
+        
+        start = end;
+        releaseCipher ();
+        cipher = sCipherPool.borrow (mCryptoProfile.getTransformation (), getKeyName ());
+        end = System.nanoTime ();
+        timings.cipherInstanceNanos = end - start;
+        
+        mCipherInitialized = false;
+        CipherState state = initCipher (keyManager, cipher, mDecryptionIv, timings);
+        mCipherInitialized = state == CipherState.INITIALIZED;
+        return state != CipherState.KEY_INVALIDATED;
+    }
     
+    private enum CipherState {
+        INITIALIZED,
+        // Session mode only: the validity window of the key has expired. The cipher is
+        // initialized again once the user has authenticated.
+        NOT_AUTHENTICATED,
+        // The set of enrolled fingerprints has changed.
+        KEY_INVALIDATED
+    }
+    
+    /**
+     * Loads the key and initializes {@code cipher} with it, for decryption if {@code iv} is set and
+     * for encryption otherwise.
+     */
+    @WorkerThread
+    private CipherState initCipher (FingerprintKeyManager keyManager, Cipher cipher, byte[] iv,
+                                    PrepareTimings timings) {
+        long start = System.nanoTime ();
+        SecretKey key = keyManager.getKey ();
+        long end = System.nanoTime ();
+        timings.keyNanos = end - start;
+    
+        start = end;
         try {
-            keyStore.load (null);
-            SecretKey key = (SecretKey) keyStore.getKey (DEFAULT_KEY_NAME, null);
-            cipher.init (Cipher.ENCRYPT_MODE, key);
-            return true;
+            if (iv == null) {
+                cipher.init (Cipher.ENCRYPT_MODE, key);
+            } else {
+                cipher.init (Cipher.DECRYPT_MODE, key, mCryptoProfile.getParameterSpec (iv));
+            }
+            return CipherState.INITIALIZED;
         } catch (KeyPermanentlyInvalidatedException e) {
-            return false;
-        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
-                | NoSuchAlgorithmException | InvalidKeyException e) {
+            // The set of enrolled fingerprints has changed.
+            if (mAvailability != null) {
+                mAvailability.invalidate ();
+            }
+            if (isSessionMode ()) {
+                mSessionManager.invalidate ();
+            }
+            return CipherState.KEY_INVALIDATED;
+        } catch (UserNotAuthenticatedException e) {
+            return CipherState.NOT_AUTHENTICATED;
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException ("Failed to initDialog Cipher", e);
+        } finally {
+            timings.cipherInitNanos = System.nanoTime () - start;
+            mMetrics.record (AuthMetrics.CIPHER_INIT, timings.cipherInitNanos);
+        }
+    }
+    
+    /**
+     * Returns the cipher to the pool, unless it was handed to the listener: the host may still be
+     * using it on its own executor, e.g. streaming a large payload through it.
+     */
+    private void releaseCipher () {
+        if (cipher != null && ! mCipherDelivered) {
+            sCipherPool.release (getKeyName (), cipher);
+        }
+        cipher = null;
+        mCipherDelivered = false;
+    }
+    
+    /**
+     * Resolves the KeyStore, KeyGenerator and Cipher instances and loads the key on a background
+     * thread, so that the JCA provider lookups and class loading are not paid on the first
+     * purchase tap. The preferences of the dialog are loaded as well. Optional; call it at
+     * startup or when the host is idle.
+     */
+    public void warmUp (Context context) {
+        final FingerprintPreferences preferences = getPreferences (context);
+        sCryptoExecutor.execute (new Runnable () {
+            @Override
+            public void run () {
+                preferences.load ();
+                PrepareTimings timings = probe ();
+                if (timings != null) {
+                    mWarmUpTimings = timings;
+                    Log.d (TAG, "Crypto warm-up (cold): " + timings);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Checks in the background whether the key is still valid, and initializes a cipher for the
+     * next tap. Within two minutes, the next show then picks the {@link AuthenticationType}
+     * straight away, e.g. the screen for a newly enrolled fingerprint, without any KeyStore work.
+     * {@link #warmUp} probes as well; call this one when the host comes back to the foreground,
+     * as that is when a fingerprint may have been enrolled. Nothing is probed if the lock screen
+     * is not secure or no fingerprint is enrolled.
+     */
+    public void probeKeyValidity (Context context) {
+        getPreferences (context);
+        getAvailability (context);
+        sCryptoExecutor.execute (mProbeRunnable);
+    }
+    
+    private final Runnable mProbeRunnable = new Runnable () {
+        @Override
+        public void run () {
+            // Both are binder calls, so they are made here rather than by the caller.
+            if (! mAvailability.isKeyguardSecure () || ! mAvailability.hasEnrolledFingerprints ()) {
+                return;
+            }
+            mPreferences.load ();
+            probe ();
+        }
+    };
+    
+    /**
+     * Initializes a cipher of its own and publishes whether the key is valid. The cipher in use
+     * by the dialog is left alone; the next show swaps the probed one in.
+     *
+     * @return the timings of the probe, or null if it failed
+     */
+    @WorkerThread
+    @Nullable
+    private PrepareTimings probe () {
+        PrepareTimings timings = new PrepareTimings ();
+        byte[] iv = mDecryptionIv;
+        Cipher probeCipher = null;
+        CipherState state;
+        try {
+            long start = System.nanoTime ();
+            FingerprintKeyManager keyManager = getKeyManager ();
+            long end = System.nanoTime ();
+            timings.keyStoreNanos = end - start;
+            
+            start = end;
+            probeCipher = sCipherPool.borrow (mCryptoProfile.getTransformation (), getKeyName ());
+            timings.cipherInstanceNanos = System.nanoTime () - start;
+            
+            state = initCipher (keyManager, probeCipher, iv, timings);
+        } catch (RuntimeException e) {
+            if (probeCipher != null) {
+                sCipherPool.release (getKeyName (), probeCipher);
+            }
+            // The real prepare pass will report the failure.
+            Log.w (TAG, "Key probe failed", e);
+            return null;
+        }
+        mMetrics.record (AuthMetrics.KEY_PROBE, timings.getTotalNanos ());
+        if (state != CipherState.INITIALIZED) {
+            sCipherPool.release (getKeyName (), probeCipher);
+            probeCipher = null;
+        }
+        KeyValidity validity = new KeyValidity (state != CipherState.KEY_INVALIDATED, timings,
+                System.nanoTime (), iv, probeCipher);
+        mKeyValidity = validity;
+        discardProbe (mPrimedProbe.getAndSet (validity));
+        return timings;
+    }
+    
+    /**
+     * @return the probe the next show can rely on instead of preparing the cipher, or null.
+     * A probe is only used once, as the cipher it initialized is used by the authentication.
+     */
+    @Nullable
+    private KeyValidity takePrimedProbe () {
+        KeyValidity validity = mPrimedProbe.getAndSet (null);
+        if (validity == null) {
+            return null;
+        }
+        if (validity.getAgeMillis () > KEY_PROBE_MAX_AGE_MILLIS
+                // The cipher must have been initialized for the current operation.
+                || validity.mIv != mDecryptionIv
+                || mPreferences == null || ! mPreferences.isLoaded ()) {
+            discardProbe (validity);
+            return null;
+        }
+        return validity;
+    }
+    
+    private void discardPrimedProbe () {
+        discardProbe (mPrimedProbe.getAndSet (null));
+    }
+    
+    /**
+     * Returns the cipher of a probe that will not be used to the pool.
+     */
+    private void discardProbe (@Nullable KeyValidity validity) {
+        if (validity != null && validity.mCipher != null) {
+            sCipherPool.release (getKeyName (), validity.mCipher);
         }
     }
     
+    /**
+     * @return the result of the latest probe, or null if none has completed
+     */
+    @Nullable
+    public KeyValidity getKeyValidity () {
+        return mKeyValidity;
+    }
+    
+    /**
+     * @return how many shows relied on a probe instead of preparing the cipher
+     */
+    public int getProbeHitCount () {
+        return mProbeHitCount;
+    }
+    
+    /**
+     * @return how many shows had to prepare the cipher, the probe being missing or stale
+     */
+    public int getProbeMissCount () {
+        return mProbeMissCount;
+    }
+    
+    /**
+     * @return the timings of the cold pass done by {@link #warmUp}, or null if it has not
+     * completed
+     */
+    @Nullable
+    public PrepareTimings getWarmUpTimings () {
+        return mWarmUpTimings;
+    }
+    
+    /**
+     * @return the pool the dialog borrows its ciphers from, e.g. to read its counters
+     */
+    public static CipherPool getCipherPool () {
+        return sCipherPool;
+    }
+    
+    /**
+     * Callback for {@link #prepareAsync}, invoked on the main thread.
+     */
+    public interface PrepareCallback {
+        /**
+         * @param keyValid false if the key has been permanently invalidated, e.g. because a new
+         *                 fingerprint was enrolled
+         * @param timings  how long each stage of the preparation took
+         */
+        void onPrepared (boolean keyValid, PrepareTimings timings);
+    }
+    
+    /**
+     * Does all of the KeyStore loading, key lookup and cipher initialization on a background
+     * thread, and reports back on the main thread once the crypto object is ready.
+     */
+    public void prepareAsync (final PrepareCallback callback) {
+        sCryptoExecutor.execute (new Runnable () {
+            @Override
+            public void run () {
+                final PrepareTimings timings = new PrepareTimings ();
+                final boolean keyValid;
+                try {
+                    FingerprintPreferences preferences = mPreferences;
+                    if (preferences != null) {
+                        preferences.load ();
+                    }
+                    keyValid = initDialog (timings);
+                } catch (final RuntimeException e) {
+                    // Surface the failure on the main thread, as it was before preparing async.
+                    mMainHandler.post (new Runnable () {
+                        @Override
+                        public void run () {
+                            throw e;
+                        }
+                    });
+                    return;
+                }
+                mMainHandler.post (new Runnable () {
+                    @Override
+                    public void run () {
+                        setCryptoObject ();
+                        callback.onPrepared (keyValid, timings);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * @return the in-memory preferences of the dialog, creating them on first use. They are
+     * loaded in the background by {@link #warmUp} or the prepare pass of the next show.
+     */
+    public FingerprintPreferences getPreferences (Context context) {
+        if (mPreferences == null) {
+            mPreferences = new FingerprintPreferences (context, sCryptoExecutor);
+        }
+        return mPreferences;
+    }
+    
+    /**
+     * @return the cached fingerprint availability state, creating it on first use
+     */
+    public FingerprintAvailability getAvailability (Context context) {
+        if (mAvailability == null) {
+            mAvailability = new FingerprintAvailability (context.getApplicationContext ());
+        }
+        return mAvailability;
+    }
+    
     public boolean checkFingerprintAvailable (Context context) {
-        KeyguardManager keyguardManager = context.getSystemService (KeyguardManager.class);
-        FingerprintManager fingerprintManager = context.getSystemService (FingerprintManager.class);
+        FingerprintAvailability availability = getAvailability (context);
         
-        if (! keyguardManager.isKeyguardSecure ()) {
+        if (! availability.isKeyguardSecure ()) {
             // Show a message that the user hasn't set up a fingerprint or lock screen.
             Toast.makeText (context,
                     "Secure lock screen hasn't set up.\n"
@@ -479,9 +1627,7 @@ public class FingerprintDialog extends DialogFragment {
                     Toast.LENGTH_LONG).show ();
             return false;
         }
-        // The line below prevents the false positive inspection from Android Studio
-        // noinspection ResourceType
-        if (! fingerprintManager.hasEnrolledFingerprints ()) {
+        if (! availability.hasEnrolledFingerprints ()) {
             // This happens when no fingerprints are registered.
             Toast.makeText (context,
                     "Go to 'Settings -> Security -> Fingerprint' and register at least one fingerprint",
@@ -491,34 +1637,83 @@ public class FingerprintDialog extends DialogFragment {
         return true;
     }
     
-    public void showFingerprintDialog (Context context, FragmentManager fragmentManager){
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences (context);
-        // Set up the crypto object for later. The object will be authenticated by use of the fingerprint.
-        if (initDialog ()) {
-            // Show the fingerprint dialog. The user has the option to use the fingerprint with crypto, or you can fall back to using a server-side verified password.
-            setCryptoObject ();
-            boolean useFingerprintPreference = sharedPreferences.getBoolean (FingerprintDialog.USE_FINGERPRINT_IN_FUTURE, true);
-            if (useFingerprintPreference) {
-                setAuthenticationType (FingerprintDialog.AuthenticationType.FINGERPRINT);
-            } else {
-                setAuthenticationType (FingerprintDialog.AuthenticationType.PASSWORD);
+    public void showFingerprintDialog (final Context context, final FragmentManager fragmentManager){
+        final FingerprintPreferences preferences = getPreferences (context);
+        mTapNanos = System.nanoTime ();
+        mAuthenticationPending = true;
+        final HostStateTracker hostState = HostStateTracker.track (context);
+        PrepareCallback callback = new PrepareCallback () {
+            @Override
+            public void onPrepared (boolean keyValid, PrepareTimings timings) {
+                mMetrics.record (AuthMetrics.TAP_TO_PREPARED, System.nanoTime () - mTapNanos);
+                PrepareTimings coldTimings = mWarmUpTimings;
+                if (coldTimings != null) {
+                    Log.d (TAG, "Crypto prepared (warm): " + timings + ", cold was: " + coldTimings);
+                } else {
+                    Log.d (TAG, "Crypto prepared: " + timings);
+                }
+                if (hostState != null) {
+                    hostState.stop ();
+                }
+                if (fragmentManager.isDestroyed ()
+                        || (hostState != null && hostState.isStateSaved ())) {
+                    // The host went away or to the background while the crypto object was being
+                    // prepared, so the dialog cannot be shown anymore.
+                    mAuthenticationPending = false;
+                    deliverCancellation ();
+                    notifyDismissed ();
+                    return;
+                }
+                if (isSessionMode ()) {
+                    if (keyValid && mCipherInitialized && mSessionManager.isSessionActive ()) {
+                        // Still within the session window: no need to ask for a fingerprint.
+                        mSessionManager.recordPromptAvoided ();
+                        deliverResult (true /* withFingerprint */, mCryptoObject);
+                        notifyDismissed ();
+                        return;
+                    }
+                    mSessionManager.recordPromptShown ();
+                }
+                if (keyValid) {
+                    // Show the fingerprint dialog. The user has the option to use the fingerprint with crypto, or you can fall back to using a server-side verified password.
+                    // Loaded by the prepare pass, so this does not touch the disk.
+                    boolean useFingerprintPreference = preferences.isUseFingerprint ();
+                    if (useFingerprintPreference) {
+                        setAuthenticationType (FingerprintDialog.AuthenticationType.FINGERPRINT);
+                    } else {
+                        setAuthenticationType (FingerprintDialog.AuthenticationType.PASSWORD);
+                    }
+                } else {
+                    // This happens if the lock screen has been disabled or or a fingerprint got
+                    // enrolled. Thus show the dialog to authenticate with their password first
+                    // and ask the user if they want to authenticate with fingerprints in the
+                    // future
+                    setAuthenticationType (FingerprintDialog.AuthenticationType.NEW_FINGERPRINT_ENROLLED);
+                }
+                mShowNanos = System.nanoTime ();
+                show (fragmentManager, FingerprintDialog.FINGERPRINT_DIALOG_TAG);
             }
-            show (fragmentManager, FingerprintDialog.FINGERPRINT_DIALOG_TAG);
-        } else {
-            // This happens if the lock screen has been disabled or or a fingerprint got
-            // enrolled. Thus show the dialog to authenticate with their password first
-            // and ask the user if they want to authenticate with fingerprints in the
-            // future
+        };
+        KeyValidity probe = takePrimedProbe ();
+        if (probe != null) {
+            // The probe already initialized a cipher and knows whether the key is valid.
+            mProbeHitCount++;
+            Log.d (TAG, "Key " + probe);
+            // Without a cipher of its own, e.g. with the key invalidated, the probe leaves none.
+            releaseCipher ();
+            cipher = probe.mCipher;
+            mCipherInitialized = cipher != null;
             setCryptoObject ();
-            setAuthenticationType (FingerprintDialog.AuthenticationType.NEW_FINGERPRINT_ENROLLED);
-            show (getFragmentManager (), FingerprintDialog.FINGERPRINT_DIALOG_TAG);
+            callback.onPrepared (probe.isValid (), probe.getTimings ());
+            return;
         }
-    
-    
+        mProbeMissCount++;
+        // Set up the crypto object for later. The object will be authenticated by use of the fingerprint.
+        prepareAsync (callback);
     }
     
     /**
-     use this method in calling activity
+     implement this AuthenticationListener method in the calling activity
      */
     /*
     public void onSuccessfulAuthentication (boolean withFingerprint, @Nullable FingerprintManager.CryptoObject cryptoObject) {
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.widget.LinearLayout;
+
+/**
+ * Root of the {@code fingerprint_dialog} layout. A vertical {@link LinearLayout} without weights
+ * measures its children in a single pass; this one also records how long its measure and layout
+ * passes take, to compare against other layouts of the dialog.
+ */
+public class FingerprintDialogLayout extends LinearLayout {
+
+    private long mLastMeasureNanos;
+    private long mLastLayoutNanos;
+    private int mMeasureCount;
+    private int mLayoutCount;
+
+    public FingerprintDialogLayout (Context context) {
+        super (context);
+    }
+
+    public FingerprintDialogLayout (Context context, AttributeSet attrs) {
+        super (context, attrs);
+    }
+
+    @Override
+    protected void onMeasure (int widthMeasureSpec, int heightMeasureSpec) {
+        long start = System.nanoTime ();
+        super.onMeasure (widthMeasureSpec, heightMeasureSpec);
+        mLastMeasureNanos = System.nanoTime () - start;
+        mMeasureCount++;
+    }
+
+    @Override
+    protected void onLayout (boolean changed, int l, int t, int r, int b) {
+        long start = System.nanoTime ();
+        super.onLayout (changed, l, t, r, b);
+        mLastLayoutNanos = System.nanoTime () - start;
+        mLayoutCount++;
+    }
+
+    /**
+     * @return the duration of the last measure pass of the whole dialog, in nanoseconds
+     */
+    public long getLastMeasureNanos () {
+        return mLastMeasureNanos;
+    }
+
+    /**
+     * @return the duration of the last layout pass of the whole dialog, in nanoseconds
+     */
+    public long getLastLayoutNanos () {
+        return mLastLayoutNanos;
+    }
+
+    public int getMeasureCount () {
+        return mMeasureCount;
+    }
+
+    public int getLayoutCount () {
+        return mLayoutCount;
+    }
+}
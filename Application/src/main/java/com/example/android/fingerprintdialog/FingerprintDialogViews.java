@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewStub;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+/**
+ * The inflated {@code fingerprint_dialog} layout with its views looked up once, so that it can
+ * be inflated ahead of the first show and reused by the following ones. The password section
+ * is only inflated, from its {@link ViewStub}, by {@link #inflatePassword()}.
+ */
+public class FingerprintDialogViews {
+    final FingerprintDialogLayout root;
+    final Button btPositive, btNeutral, btNegative;
+    final LinearLayout llFingerprint;
+    final TextView tvMessage;
+    private final ViewStub stubPassword;
+
+    LinearLayout llPassword;
+    CheckBox cbFingerprintInFuture;
+    EditText etPassword;
+    TextView tv2;
+    ProgressBar pbPassword;
+
+    FingerprintDialogViews (View root) {
+        this.root = (FingerprintDialogLayout) root;
+        btPositive = (Button) root.findViewById (R.id.btPositive);
+        btNegative = (Button) root.findViewById (R.id.btNegative);
+        btNeutral = (Button) root.findViewById (R.id.btNeutral);
+        llFingerprint = (LinearLayout) root.findViewById (R.id.llFingerprint);
+        tvMessage = (TextView) root.findViewById (R.id.tvMessage);
+        stubPassword = (ViewStub) root.findViewById (R.id.stubPassword);
+    }
+
+    boolean isPasswordInflated () {
+        return llPassword != null;
+    }
+
+    /**
+     * Inflates the password section if it has not been yet.
+     *
+     * @return true if it was inflated by this call
+     */
+    boolean inflatePassword () {
+        if (llPassword != null) {
+            return false;
+        }
+        llPassword = (LinearLayout) stubPassword.inflate ();
+        cbFingerprintInFuture = (CheckBox) llPassword.findViewById (R.id.cbFingerprintInFuture);
+        etPassword = (EditText) llPassword.findViewById (R.id.etPassword);
+        tv2 = (TextView) llPassword.findViewById (R.id.tv2);
+        pbPassword = (ProgressBar) llPassword.findViewById (R.id.pbPassword);
+        return true;
+    }
+
+    /**
+     * Detaches the root from the window of the previous dialog, so it can be shown again.
+     */
+    void detach () {
+        if (root.getParent () instanceof ViewGroup) {
+            ((ViewGroup) root.getParent ()).removeView (root);
+        }
+    }
+}
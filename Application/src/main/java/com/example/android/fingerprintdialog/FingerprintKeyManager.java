@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Owns the lifecycle of the key used by {@link FingerprintDialog}. The key is only generated
+ * when it is missing from the key store or has been permanently invalidated, and the loaded
+ * {@link SecretKey} handle is cached between dialog shows.
+ * <p>
+ * This class has no Android dependencies so it can be exercised on a plain JVM against a
+ * software key store standing in for "AndroidKeyStore".
+ */
+public class FingerprintKeyManager {
+
+    /**
+     * Initializes the {@link KeyGenerator} with the parameters of the key to be generated. On a
+     * device this builds a {@code KeyGenParameterSpec}; on the JVM a plain key size is enough.
+     */
+    public interface KeyInitializer {
+        void init (KeyGenerator keyGenerator, String keyName) throws InvalidAlgorithmParameterException;
+    }
+
+    private final KeyStore mKeyStore;
+    private final KeyGenerator mKeyGenerator;
+    private final KeyInitializer mKeyInitializer;
+    private final String mKeyName;
+    // AndroidKeyStore entries are not password protected; software key stores need one.
+    private final char[] mKeyPassword;
+
+    private boolean mKeyStoreLoaded;
+    private SecretKey mKey;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mRegenerationCount;
+
+    public FingerprintKeyManager (KeyStore keyStore, KeyGenerator keyGenerator,
+                                  KeyInitializer keyInitializer, String keyName) {
+        mKeyStore = keyStore;
+        mKeyGenerator = keyGenerator;
+        mKeyInitializer = keyInitializer;
+        mKeyName = keyName;
+        mKeyPassword = isAndroidKeyStore () ? null : new char[0];
+    }
+
+    public String getKeyName () {
+        return mKeyName;
+    }
+
+    public KeyStore getKeyStore () {
+        return mKeyStore;
+    }
+
+    /**
+     * @return the cached key, loading it from the key store or generating it if it is missing
+     */
+    public synchronized SecretKey getKey () {
+        if (mKey != null) {
+            mHitCount++;
+            return mKey;
+        }
+        mMissCount++;
+        try {
+            loadKeyStore ();
+            mKey = (SecretKey) mKeyStore.getKey (mKeyName, mKeyPassword);
+        } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException e) {
+            throw new RuntimeException ("Failed to get the key from KeyStore", e);
+        }
+        if (mKey == null) {
+            mKey = generateKey ();
+        }
+        return mKey;
+    }
+
+    /**
+     * Drops the cached handle and generates a fresh key. Call this after the key has been
+     * permanently invalidated, e.g. because a new fingerprint was enrolled.
+     */
+    public synchronized SecretKey recreateKey () {
+        mRegenerationCount++;
+        mKey = generateKey ();
+        return mKey;
+    }
+
+    /**
+     * Drops the cached handle so the next {@link #getKey()} goes back to the key store.
+     */
+    public synchronized void invalidate () {
+        mKey = null;
+    }
+
+    public synchronized int getHitCount () {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount () {
+        return mMissCount;
+    }
+
+    public synchronized int getRegenerationCount () {
+        return mRegenerationCount;
+    }
+
+    private boolean isAndroidKeyStore () {
+        return "AndroidKeyStore".equals (mKeyStore.getType ());
+    }
+
+    private void loadKeyStore () {
+        if (mKeyStoreLoaded) {
+            return;
+        }
+        try {
+            mKeyStore.load (null);
+            mKeyStoreLoaded = true;
+        } catch (CertificateException | NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException ("Failed to load KeyStore", e);
+        }
+    }
+
+    private SecretKey generateKey () {
+        loadKeyStore ();
+        try {
+            mKeyInitializer.init (mKeyGenerator, mKeyName);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new RuntimeException (e);
+        }
+        SecretKey key = mKeyGenerator.generateKey ();
+        if (! isAndroidKeyStore ()) {
+            // Software key stores do not pick up generated keys on their own.
+            try {
+                mKeyStore.setEntry (mKeyName, new KeyStore.SecretKeyEntry (key),
+                        new KeyStore.PasswordProtection (mKeyPassword));
+            } catch (KeyStoreException e) {
+                throw new RuntimeException ("Failed to store the key", e);
+            }
+        }
+        return key;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.WorkerThread;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the "use fingerprint in the future" choice in memory. The preferences file is only
+ * touched on a background executor: it is read once by {@link #load()}, and writes made in quick
+ * succession are folded into a single commit.
+ */
+public class FingerprintPreferences {
+
+    private final Context mContext;
+    private final Executor mExecutor;
+
+    private SharedPreferences mSharedPreferences;
+    private boolean mLoaded;
+    private boolean mUseFingerprint = true;
+    // Set once the value in memory has been written to, and is newer than the one on disk.
+    private boolean mChanged;
+    private boolean mFlushScheduled;
+
+    /**
+     * @param executor the executor the preferences file is read and written on
+     */
+    public FingerprintPreferences (Context context, Executor executor) {
+        mContext = context.getApplicationContext ();
+        mExecutor = executor;
+    }
+
+    /**
+     * Reads the preferences file if it has not been read yet. Cheap once loaded.
+     */
+    @WorkerThread
+    public void load () {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences (mContext);
+        boolean useFingerprint = sharedPreferences.getBoolean (FingerprintDialog.USE_FINGERPRINT_IN_FUTURE, true);
+        synchronized (this) {
+            if (! mLoaded) {
+                mSharedPreferences = sharedPreferences;
+                if (! mChanged) {
+                    mUseFingerprint = useFingerprint;
+                }
+                mLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * @return true once {@link #load()} has completed
+     */
+    public synchronized boolean isLoaded () {
+        return mLoaded;
+    }
+
+    /**
+     * @return whether the user chose to keep using fingerprints. Defaults to true until
+     * {@link #load()} has completed.
+     */
+    public synchronized boolean isUseFingerprint () {
+        return mUseFingerprint;
+    }
+
+    /**
+     * Updates the choice in memory right away, and schedules it to be written to disk.
+     */
+    public synchronized void setUseFingerprint (boolean useFingerprint) {
+        mUseFingerprint = useFingerprint;
+        mChanged = true;
+        if (mFlushScheduled) {
+            // The pending flush will pick up the latest value.
+            return;
+        }
+        mFlushScheduled = true;
+        mExecutor.execute (mFlushRunnable);
+    }
+
+    private final Runnable mFlushRunnable = new Runnable () {
+        @Override
+        public void run () {
+            load ();
+            boolean useFingerprint;
+            SharedPreferences sharedPreferences;
+            synchronized (FingerprintPreferences.this) {
+                mFlushScheduled = false;
+                useFingerprint = mUseFingerprint;
+                sharedPreferences = mSharedPreferences;
+            }
+            sharedPreferences.edit ()
+                    .putBoolean (FingerprintDialog.USE_FINGERPRINT_IN_FUTURE, useFingerprint)
+                    .commit ();
+        }
+    };
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.fingerprintdialog;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.support.annotation.MainThread;
+
+/**
+ * Follows the host activity while the crypto object is prepared, so that the dialog is not shown
+ * once the host has saved its state: a fragment transaction would then throw
+ * {@link IllegalStateException}. {@code FragmentManager.isStateSaved} is only available from
+ * API 26.
+ */
+@MainThread
+final class HostStateTracker implements Application.ActivityLifecycleCallbacks {
+
+    private final Activity mHost;
+    private boolean mStateSaved;
+
+    private HostStateTracker (Activity host) {
+        mHost = host;
+    }
+
+    /**
+     * Starts following {@code context} if it is an activity. Call {@link #stop} once done.
+     *
+     * @return the tracker, or null if {@code context} is not an activity
+     */
+    static HostStateTracker track (Context context) {
+        if (! (context instanceof Activity)) {
+            return null;
+        }
+        HostStateTracker tracker = new HostStateTracker ((Activity) context);
+        tracker.mHost.getApplication ().registerActivityLifecycleCallbacks (tracker);
+        return tracker;
+    }
+
+    void stop () {
+        mHost.getApplication ().unregisterActivityLifecycleCallbacks (this);
+    }
+
+    /**
+     * @return true if the host has saved its state or stopped since it was tracked
+     */
+    boolean isStateSaved () {
+        return mStateSaved;
+    }
+
+    @Override
+    public void onActivitySaveInstanceState (Activity activity, Bundle outState) {
+        if (activity == mHost) {
+            mStateSaved = true;
+        }
+    }
+
+    @Override
+    public void onActivityStopped (Activity activity) {
+        if (activity == mHost) {
+            mStateSaved = true;
+        }
+    }
+
+    @Override
+    public void onActivityStarted (Activity activity) {
+        if (activity == mHost) {
+            mStateSaved = false;
+        }
+    }
+
+    @Override
+    public void onActivityResumed (Activity activity) {
+        if (activity == mHost) {
+            mStateSaved = false;
+        }
+    }
+
+    @Override
+    public void onActivityCreated (Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityPaused (Activity activity) {
+    }
+
+    @Override
+    public void onActivityDestroyed (Activity activity) {
+    }
+}
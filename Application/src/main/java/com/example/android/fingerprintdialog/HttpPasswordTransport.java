@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Posts the password to an HTTP endpoint as a form parameter. A 2xx answer accepts it, 401 or 403
+ * rejects it. Connections are kept alive and reused between calls by
+ * {@link HttpURLConnection}: every response body is read to the end and closed rather than
+ * disconnected, unless the call is cancelled.
+ */
+public class HttpPasswordTransport implements PasswordTransport {
+
+    private final URL mEndpoint;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    /**
+     * @param connectTimeoutMillis how long to wait for the connection to be established
+     * @param readTimeoutMillis    how long to wait for the answer once the request is sent
+     */
+    public HttpPasswordTransport (URL endpoint, int connectTimeoutMillis, int readTimeoutMillis) {
+        mEndpoint = endpoint;
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public Call newCall (char[] password) {
+        return new HttpCall (password);
+    }
+
+    private class HttpCall implements Call {
+        private final char[] mPassword;
+        private volatile HttpURLConnection mConnection;
+        private volatile boolean mCancelled;
+
+        HttpCall (char[] password) {
+            mPassword = password;
+        }
+
+        @Override
+        public boolean execute () throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection ();
+            mConnection = connection;
+            if (mCancelled) {
+                throw new IOException ("Cancelled");
+            }
+            connection.setConnectTimeout (mConnectTimeoutMillis);
+            connection.setReadTimeout (mReadTimeoutMillis);
+            connection.setRequestMethod ("POST");
+            connection.setDoOutput (true);
+            connection.setRequestProperty ("Content-Type", "application/x-www-form-urlencoded");
+            byte[] body = ("password=" + URLEncoder.encode (new String (mPassword), "UTF-8"))
+                    .getBytes ("UTF-8");
+            connection.setFixedLengthStreamingMode (body.length);
+            try {
+                OutputStream out = connection.getOutputStream ();
+                try {
+                    out.write (body);
+                } finally {
+                    out.close ();
+                }
+                int code = connection.getResponseCode ();
+                drain (code < 400 ? connection.getInputStream () : connection.getErrorStream ());
+                if (code >= 200 && code < 300) {
+                    return true;
+                }
+                if (code == HttpURLConnection.HTTP_UNAUTHORIZED || code == HttpURLConnection.HTTP_FORBIDDEN) {
+                    return false;
+                }
+                throw new IOException ("Unexpected response " + code);
+            } catch (IOException e) {
+                if (mCancelled) {
+                    throw new IOException ("Cancelled", e);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void cancel () {
+            mCancelled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                // Closes the socket, which makes a blocked read or connect throw.
+                connection.disconnect ();
+            }
+        }
+    }
+
+    /**
+     * Reads the response to the end, so that the connection can go back to the pool.
+     */
+    private static void drain (InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[512];
+            while (in.read (buffer) != -1) {
+                // Discard.
+            }
+        } finally {
+            in.close ();
+        }
+    }
+}
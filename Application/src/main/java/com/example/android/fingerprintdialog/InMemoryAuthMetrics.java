@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.util.Arrays;
+
+/**
+ * {@link AuthMetrics} that keeps a histogram per timer in memory, from which percentiles can
+ * be read. The buckets are allocated up front, so recording does not allocate.
+ * <p>
+ * Each power of two is split into {@value #SUB_BUCKETS} buckets, so a reported percentile is
+ * within about 6% of the real value.
+ */
+public class InMemoryAuthMetrics implements AuthMetrics {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[][] mBuckets = new long[TIMER_COUNT][BUCKET_COUNT];
+    private final long[] mCounts = new long[TIMER_COUNT];
+    private final long[] mMax = new long[TIMER_COUNT];
+
+    @Override
+    public synchronized void record (int timer, long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets[timer][bucketOf (nanos)]++;
+        mCounts[timer]++;
+        if (nanos > mMax[timer]) {
+            mMax[timer] = nanos;
+        }
+    }
+
+    public synchronized long getCount (int timer) {
+        return mCounts[timer];
+    }
+
+    public synchronized long getMaxNanos (int timer) {
+        return mMax[timer];
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99 for p99
+     * @return the approximate value of the percentile in nanoseconds, or 0 without measurements
+     */
+    public synchronized long getPercentileNanos (int timer, double percentile) {
+        long count = mCounts[timer];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil (count * percentile / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        long[] buckets = mBuckets[timer];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min (upperBoundOf (i), mMax[timer]);
+            }
+        }
+        return mMax[timer];
+    }
+
+    public long getP50Nanos (int timer) {
+        return getPercentileNanos (timer, 50);
+    }
+
+    public long getP95Nanos (int timer) {
+        return getPercentileNanos (timer, 95);
+    }
+
+    public long getP99Nanos (int timer) {
+        return getPercentileNanos (timer, 99);
+    }
+
+    public synchronized void reset () {
+        for (int timer = 0; timer < TIMER_COUNT; timer++) {
+            Arrays.fill (mBuckets[timer], 0);
+            mCounts[timer] = 0;
+            mMax[timer] = 0;
+        }
+    }
+
+    static int bucketOf (long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros (value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    static long upperBoundOf (int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS;
+        long lower = (1L << exponent) | (mantissa << (exponent - SUB_BUCKET_BITS));
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+/**
+ * The outcome of a background probe of the fingerprint-bound key, done by
+ * {@link FingerprintDialog#probeKeyValidity} before the user taps. The tap path uses it to pick
+ * the {@link FingerprintDialog.AuthenticationType} without touching the KeyStore.
+ */
+public final class KeyValidity {
+
+    private final boolean mValid;
+    private final PrepareTimings mTimings;
+    private final long mProbedAtNanos;
+    // The IV the cipher was initialized with, null for encryption.
+    final byte[] mIv;
+    // The cipher the probe initialized, borrowed from the pool; null if it could not be.
+    final Cipher mCipher;
+
+    KeyValidity (boolean valid, PrepareTimings timings, long probedAtNanos, byte[] iv, Cipher cipher) {
+        mValid = valid;
+        mTimings = timings;
+        mProbedAtNanos = probedAtNanos;
+        mIv = iv;
+        mCipher = cipher;
+    }
+
+    /**
+     * @return false if the key had been permanently invalidated, e.g. because a new fingerprint
+     * was enrolled
+     */
+    public boolean isValid () {
+        return mValid;
+    }
+
+    /**
+     * @return how long each stage of the probe took
+     */
+    public PrepareTimings getTimings () {
+        return mTimings;
+    }
+
+    /**
+     * @return the time the probe took, all paid off the UI thread
+     */
+    public long getCostNanos () {
+        return mTimings.getTotalNanos ();
+    }
+
+    /**
+     * @return how long ago the probe completed
+     */
+    public long getAgeMillis () {
+        return TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - mProbedAtNanos);
+    }
+
+    @Override
+    public String toString () {
+        return (mValid ? "valid" : "invalidated") + ", probed " + getAgeMillis () + "ms ago in "
+                + TimeUnit.NANOSECONDS.toMicros (getCostNanos ()) + "us";
+    }
+}
@@ -27,14 +27,34 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
-public class MainActivity extends Activity {
+public class MainActivity extends Activity implements FingerprintDialog.AuthenticationListener {
     
     Button purchaseButton;
     FingerprintDialog fingerprintDialog;
+    // Joins taps made while the dialog is already being prepared or shown.
+    AuthenticationCoordinator authenticationCoordinator;
+    // Queues the purchase with the other requests for authentication of the app.
+    AuthenticationScheduler authenticationScheduler;
+    
+    // Encrypting the purchase happens off the main thread. Shared by re-created activities, as
+    // the fingerprint dialog is retained across them.
+    private static final ExecutorService sPurchaseExecutor = Executors.newSingleThreadExecutor ();
+    
+    private static final String TAG = "MainActivity";
+    // The encrypted message with its IV, kept so that it can be decrypted on the next launch.
+    private static final String ENVELOPE_FILE_NAME = "secret_message.bin";
+    // Taps made while the purchase is being confirmed are answered by the same prompt.
+    private static final String PURCHASE_MERGE_KEY = "purchase";
+    
+    private File mEnvelopeFile;
+    private volatile SecretEnvelope mStoredEnvelope;
     
     @Override
     protected void onCreate (Bundle savedInstanceState) {
@@ -43,7 +63,63 @@ public class MainActivity extends Activity {
         initView ();
         initData ();
         initListener ();
-        fingerprintDialog.checkFingerprintAvailable (this);
+        if (fingerprintDialog.checkFingerprintAvailable (this)) {
+            // Pay the crypto provider start-up cost now rather than on the first purchase tap.
+            fingerprintDialog.warmUp (this);
+        }
+        // The dialog is shown with the password fallback even without fingerprints.
+        fingerprintDialog.preInflate (this);
+        mEnvelopeFile = new File (getNoBackupFilesDir (), ENVELOPE_FILE_NAME);
+        sPurchaseExecutor.execute (mLoadEnvelopeRunnable);
+    }
+    
+    /**
+     * Reads the message encrypted by a previous launch, if any. The next authentication then
+     * decrypts it rather than encrypting a new one.
+     */
+    private final Runnable mLoadEnvelopeRunnable = new Runnable () {
+        @Override
+        public void run () {
+            if (! mEnvelopeFile.exists ()) {
+                return;
+            }
+            final SecretEnvelope envelope;
+            try {
+                envelope = SecretEnvelope.readFrom (mEnvelopeFile);
+            } catch (IOException e) {
+                Log.w (TAG, "Discarding unreadable " + mEnvelopeFile, e);
+                mEnvelopeFile.delete ();
+                return;
+            }
+            runOnUiThread (new Runnable () {
+                @Override
+                public void run () {
+                    mStoredEnvelope = envelope;
+                    fingerprintDialog.setDecryptionEnvelope (envelope);
+                }
+            });
+        }
+    };
+    
+    @Override
+    protected void onRestart () {
+        super.onRestart ();
+        // Fingerprints or the lock screen may have been changed while the app was in the background.
+        fingerprintDialog.getAvailability (this).invalidate ();
+        // Find out now, rather than on the next tap, whether a new fingerprint invalidated the key.
+        fingerprintDialog.probeKeyValidity (this);
+    }
+    
+    @Override
+    protected void onResume () {
+        super.onResume ();
+        authenticationScheduler.setHost (this);
+    }
+    
+    @Override
+    protected void onPause () {
+        super.onPause ();
+        authenticationScheduler.setHost (null);
     }
     
     private void initView () {
@@ -51,7 +127,48 @@ public class MainActivity extends Activity {
     }
     
     private void initData () {
+        RetainedState retained = (RetainedState) getLastNonConfigurationInstance ();
+        if (retained != null) {
+            // Re-created after a configuration change: carry on with the prompt in flight, if
+            // any, and have its result delivered here rather than to the destroyed activity.
+            fingerprintDialog = retained.fingerprintDialog;
+            authenticationCoordinator = retained.authenticationCoordinator;
+            authenticationScheduler = retained.authenticationScheduler;
+            authenticationScheduler.replaceListener (retained.activity, this);
+            authenticationCoordinator.replaceListener (retained.activity, this);
+            return;
+        }
         fingerprintDialog = new FingerprintDialog ();
+        // Percentiles of the authentication flow are only collected in debug builds.
+        fingerprintDialog.setMetrics (BuildConfig.DEBUG ? new InMemoryAuthMetrics () : NoOpAuthMetrics.INSTANCE);
+        authenticationCoordinator = new AuthenticationCoordinator (fingerprintDialog, sPurchaseExecutor);
+        authenticationScheduler = new AuthenticationScheduler (authenticationCoordinator);
+    }
+    
+    @Override
+    public Object onRetainNonConfigurationInstance () {
+        return new RetainedState (this, fingerprintDialog, authenticationCoordinator, authenticationScheduler);
+    }
+    
+    /**
+     * The authentication objects, handed over to the activity re-created after a configuration
+     * change. The dialog is a retained fragment, so a prompt in flight survives the change, and
+     * so must the coordinator and scheduler it reports to.
+     */
+    private static final class RetainedState {
+        final MainActivity activity;
+        final FingerprintDialog fingerprintDialog;
+        final AuthenticationCoordinator authenticationCoordinator;
+        final AuthenticationScheduler authenticationScheduler;
+        
+        RetainedState (MainActivity activity, FingerprintDialog fingerprintDialog,
+                       AuthenticationCoordinator authenticationCoordinator,
+                       AuthenticationScheduler authenticationScheduler) {
+            this.activity = activity;
+            this.fingerprintDialog = fingerprintDialog;
+            this.authenticationCoordinator = authenticationCoordinator;
+            this.authenticationScheduler = authenticationScheduler;
+        }
     }
     
     private void initListener () {
@@ -60,30 +177,96 @@ public class MainActivity extends Activity {
             public void onClick (View v) {
                 findViewById (R.id.confirmation_message).setVisibility (View.GONE);
                 findViewById (R.id.encrypted_message).setVisibility (View.GONE);
-                fingerprintDialog.showFingerprintDialog (MainActivity.this, getFragmentManager ());
+                authenticationScheduler.submit (PURCHASE_MERGE_KEY, AuthenticationScheduler.PRIORITY_HIGH,
+                        AuthenticationScheduler.NO_TIMEOUT, MainActivity.this);
             }
         });
     }
     
+    /**
+     * Called on {@link #sPurchaseExecutor}, see {@link #initData()}.
+     */
+    @Override
     public void onSuccessfulAuthentication (boolean withFingerprint, @Nullable FingerprintManager.CryptoObject cryptoObject) {
         if (withFingerprint) {
             // If the user has authenticated with fingerprint, verify that using cryptography and then show the confirmation message.
             assert cryptoObject != null;
+            SecretEnvelope storedEnvelope = mStoredEnvelope;
+            // Decided by the cipher rather than the current mode of the dialog: the envelope may
+            // have been loaded after this cipher was prepared for encryption.
+            if (storedEnvelope != null && storedEnvelope.isOpenableWith (cryptoObject.getCipher ())) {
+                decryptStoredMessage (storedEnvelope, cryptoObject);
+                return;
+            }
             try {
-                byte[] encrypted = cryptoObject.getCipher ().doFinal (FingerprintDialog.SECRET_MESSAGE.getBytes ());
-                findViewById (R.id.confirmation_message).setVisibility (View.VISIBLE);
-                if (encrypted != null) {
-                    TextView v = (TextView) findViewById (R.id.encrypted_message);
-                    v.setVisibility (View.VISIBLE);
-                    v.setText (Base64.encodeToString (encrypted, 0 /* flags */));
+                SecretEnvelope envelope = SecretEnvelope.seal (cryptoObject.getCipher (),
+                        fingerprintDialog.getCryptoProfile (), FingerprintDialog.SECRET_MESSAGE.getBytes ());
+                try {
+                    envelope.writeTo (mEnvelopeFile);
+                } catch (IOException e) {
+                    Log.w (TAG, "Failed to store the encrypted message", e);
                 }
-            } catch (BadPaddingException | IllegalBlockSizeException e) {
-                Toast.makeText (this, "Failed to encrypt the data with the generated key. "
-                        + "Retry the purchase", Toast.LENGTH_LONG).show ();
-                Log.e ("TAG", "Failed to encrypt the data with the generated key." + e.getMessage ());
+                final String encoded = Base64.encodeToString (envelope.getBody (), 0 /* flags */);
+                runOnUiThread (new Runnable () {
+                    @Override
+                    public void run () {
+                        showMessage (encoded);
+                    }
+                });
+            } catch (GeneralSecurityException e) {
+                Log.e (TAG, "Failed to encrypt the data with the generated key." + e.getMessage ());
+                runOnUiThread (new Runnable () {
+                    @Override
+                    public void run () {
+                        Toast.makeText (MainActivity.this, "Failed to encrypt the data with the generated key. "
+                                + "Retry the purchase", Toast.LENGTH_LONG).show ();
+                    }
+                });
             }
         } else {
             // Authentication happened with backup password. Just show the confirmation message.
         }
     }
+    
+    /**
+     * Called on {@link #sPurchaseExecutor}, see {@link #initData()}.
+     */
+    @Override
+    public void onAuthenticationCancelled () {
+        // Nothing to undo: the purchase button can simply be tapped again.
+    }
+    
+    private void decryptStoredMessage (SecretEnvelope envelope, FingerprintManager.CryptoObject cryptoObject) {
+        String decrypted;
+        try {
+            decrypted = new String (envelope.open (cryptoObject.getCipher ()));
+        } catch (GeneralSecurityException e) {
+            // Most likely encrypted with a key that has since been replaced.
+            Log.w (TAG, "Failed to decrypt the stored message", e);
+            mEnvelopeFile.delete ();
+            decrypted = null;
+        }
+        final String message = decrypted;
+        runOnUiThread (new Runnable () {
+            @Override
+            public void run () {
+                // Encrypt again from the next purchase on.
+                mStoredEnvelope = null;
+                fingerprintDialog.setDecryptionEnvelope (null);
+                if (message != null) {
+                    showMessage (message);
+                } else {
+                    Toast.makeText (MainActivity.this, "Failed to decrypt the stored message. "
+                            + "Retry the purchase", Toast.LENGTH_LONG).show ();
+                }
+            }
+        });
+    }
+    
+    private void showMessage (String message) {
+        findViewById (R.id.confirmation_message).setVisibility (View.VISIBLE);
+        TextView v = (TextView) findViewById (R.id.encrypted_message);
+        v.setVisibility (View.VISIBLE);
+        v.setText (message);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.IOException;
+
+/**
+ * Carries password verification requests to the server. {@link HttpPasswordTransport} is the
+ * default; tests can provide their own.
+ */
+public interface PasswordTransport {
+
+    /**
+     * Prepares a verification of {@code password}. Nothing is sent until
+     * {@link Call#execute()}.
+     */
+    Call newCall (char[] password);
+
+    /**
+     * A single verification.
+     */
+    interface Call {
+        /**
+         * Sends the request and waits for the answer. Blocks; call it on a background thread.
+         *
+         * @return true if the server accepted the password, false if it rejected it
+         * @throws IOException if the server could not be reached in time, gave an unexpected
+         *                     answer, or the call was cancelled
+         */
+        boolean execute () throws IOException;
+
+        /**
+         * Aborts {@link #execute()} if it is in progress, from any thread.
+         */
+        void cancel ();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Verifies the backup password against a salted PBKDF2 hash. The iteration count is calibrated
+ * on the device when the password is enrolled, so that one verification takes about the given
+ * time budget whatever the speed of the device.
+ * <p>
+ * PBKDF2 with HMAC-SHA1 is the only password-based key derivation the platform provides from
+ * API 23. Deriving the key is slow on purpose: call {@link #verify} off the UI thread.
+ */
+public final class PasswordVerifier {
+
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    // One SHA-1 block: a longer hash would cost the defender more without costing an attacker more.
+    private static final int HASH_BITS = 160;
+    private static final int SALT_SIZE = 16;
+    private static final int MIN_ITERATIONS = 10000;
+    private static final int CALIBRATION_ITERATIONS = 2000;
+    private static final int FORMAT_VERSION = 1;
+
+    private final byte[] mSalt;
+    private final int mIterations;
+    private final byte[] mHash;
+
+    private PasswordVerifier (byte[] salt, int iterations, byte[] hash) {
+        mSalt = salt;
+        mIterations = iterations;
+        mHash = hash;
+    }
+
+    /**
+     * @return the iteration count for which one verification takes about {@code budgetMillis}
+     * on this device, but never fewer than 10000
+     */
+    public static int calibrate (long budgetMillis) throws GeneralSecurityException {
+        char[] password = "calibration".toCharArray ();
+        byte[] salt = new byte[SALT_SIZE];
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos (budgetMillis);
+        // The first runs pay for the provider lookup, class loading and compilation, and would
+        // make the device look slower than it is: discard one, then double the work until it
+        // takes a quarter of the budget, and extrapolate from the last run.
+        derive (password, salt, CALIBRATION_ITERATIONS);
+        int iterations = CALIBRATION_ITERATIONS;
+        long elapsed;
+        while (true) {
+            long start = System.nanoTime ();
+            derive (password, salt, iterations);
+            elapsed = Math.max (1, System.nanoTime () - start);
+            if (elapsed >= budgetNanos / 4 || iterations >= Integer.MAX_VALUE / 2) {
+                break;
+            }
+            iterations *= 2;
+        }
+        long calibrated = iterations * budgetNanos / elapsed;
+        return (int) Math.min (Integer.MAX_VALUE, Math.max (MIN_ITERATIONS, calibrated));
+    }
+
+    /**
+     * Hashes {@code password} with a new random salt.
+     */
+    public static PasswordVerifier enroll (char[] password, int iterations) throws GeneralSecurityException {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException ("Iterations must be positive: " + iterations);
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        new SecureRandom ().nextBytes (salt);
+        return new PasswordVerifier (salt, iterations, derive (password, salt, iterations));
+    }
+
+    /**
+     * @return true if {@code password} is the enrolled one. Takes the calibrated time whether it
+     * is or not.
+     */
+    public boolean verify (char[] password) throws GeneralSecurityException {
+        return constantTimeEquals (mHash, derive (password, mSalt, mIterations));
+    }
+
+    public int getIterations () {
+        return mIterations;
+    }
+
+    private static byte[] derive (char[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec (password, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance (ALGORITHM).generateSecret (spec).getEncoded ();
+        } finally {
+            spec.clearPassword ();
+        }
+    }
+
+    /**
+     * Compares every byte whatever the position of the first difference, so that the time taken
+     * does not tell how much of the hash matched.
+     */
+    static boolean constantTimeEquals (byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < a.length; i++) {
+            difference |= a[i] ^ b[i];
+        }
+        return difference == 0;
+    }
+
+    public void writeTo (File file) throws IOException {
+        File temp = new File (file.getPath () + ".tmp");
+        DataOutputStream out = new DataOutputStream (new FileOutputStream (temp));
+        try {
+            out.writeByte (FORMAT_VERSION);
+            out.writeInt (mIterations);
+            out.writeByte (mSalt.length);
+            out.write (mSalt);
+            out.writeByte (mHash.length);
+            out.write (mHash);
+        } finally {
+            out.close ();
+        }
+        if (! temp.renameTo (file)) {
+            throw new IOException ("Failed to rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * @throws IOException if the file is truncated, of another version or holds values that
+     *                     {@link #enroll} never writes
+     */
+    public static PasswordVerifier readFrom (File file) throws IOException {
+        DataInputStream in = new DataInputStream (new FileInputStream (file));
+        try {
+            int version = in.readUnsignedByte ();
+            if (version != FORMAT_VERSION) {
+                throw new IOException ("Unsupported password verifier version " + version);
+            }
+            int iterations = in.readInt ();
+            byte[] salt = new byte[in.readUnsignedByte ()];
+            in.readFully (salt);
+            byte[] hash = new byte[in.readUnsignedByte ()];
+            in.readFully (hash);
+            // PBEKeySpec throws IllegalArgumentException on these, which would escape the caller.
+            if (iterations <= 0 || salt.length != SALT_SIZE || hash.length != HASH_BITS / 8) {
+                throw new IOException (file + " is corrupt");
+            }
+            return new PasswordVerifier (salt, iterations, hash);
+        } finally {
+            in.close ();
+        }
+    }
+}
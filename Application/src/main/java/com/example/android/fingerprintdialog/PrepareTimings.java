@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stage timings, in nanoseconds, of one crypto prepare pass done before the
+ * {@link FingerprintDialog} is shown.
+ */
+public class PrepareTimings {
+    long keyStoreNanos;
+    long cipherInstanceNanos;
+    long keyNanos;
+    long cipherInitNanos;
+
+    /**
+     * @return time spent resolving the KeyStore and KeyGenerator instances
+     */
+    public long getKeyStoreNanos () {
+        return keyStoreNanos;
+    }
+
+    /**
+     * @return time spent in {@code Cipher.getInstance}
+     */
+    public long getCipherInstanceNanos () {
+        return cipherInstanceNanos;
+    }
+
+    /**
+     * @return time spent loading (or generating) the key
+     */
+    public long getKeyNanos () {
+        return keyNanos;
+    }
+
+    /**
+     * @return time spent in {@code Cipher.init}
+     */
+    public long getCipherInitNanos () {
+        return cipherInitNanos;
+    }
+
+    public long getTotalNanos () {
+        return keyStoreNanos + cipherInstanceNanos + keyNanos + cipherInitNanos;
+    }
+
+    @Override
+    public String toString () {
+        return "keyStore=" + micros (keyStoreNanos) + "us"
+                + " cipherInstance=" + micros (cipherInstanceNanos) + "us"
+                + " key=" + micros (keyNanos) + "us"
+                + " cipherInit=" + micros (cipherInitNanos) + "us"
+                + " total=" + micros (getTotalNanos ()) + "us";
+    }
+
+    private static long micros (long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros (nanos);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts many records after a single fingerprint authentication.
+ * <p>
+ * Only one operation is done with the fingerprint-bound key: wrapping a random master key, or
+ * unwrapping it again with the cipher of an authenticated {@code CryptoObject}. Every record is
+ * then encrypted with AES-GCM under its own data key, derived from the master key with
+ * HMAC-SHA256 over the record id, in software. The record id is also authenticated with the
+ * record, so that records cannot be swapped in storage.
+ * <p>
+ * To decrypt, prepare the dialog with {@link FingerprintDialog#setDecryptionEnvelope} and the
+ * wrapped master key, then pass the authenticated cipher to {@link #unwrap}. Call
+ * {@link #destroy()} once the batch is done. Not thread safe.
+ */
+public class RecordBatchCipher {
+
+    private static final String RECORD_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KDF_ALGORITHM = "HmacSHA256";
+    private static final int MASTER_KEY_SIZE = 32;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_SIZE = CryptoProfile.GCM_TAG_LENGTH_BITS / 8;
+
+    private static final Charset UTF_8 = Charset.forName ("UTF-8");
+    private static final byte[] KDF_LABEL = "record:".getBytes (UTF_8);
+
+    private final byte[] mMasterKey;
+    private final SecretEnvelope mWrappedMasterKey;
+    private final Mac mKdf;
+    private final Cipher mCipher;
+    private final SecureRandom mRandom;
+
+    private long mRecordCount;
+    private long mRecordNanos;
+
+    private RecordBatchCipher (byte[] masterKey, SecretEnvelope wrappedMasterKey, SecureRandom random)
+            throws GeneralSecurityException {
+        mMasterKey = masterKey;
+        mWrappedMasterKey = wrappedMasterKey;
+        mKdf = Mac.getInstance (KDF_ALGORITHM);
+        mKdf.init (new SecretKeySpec (masterKey, KDF_ALGORITHM));
+        mCipher = Cipher.getInstance (RECORD_TRANSFORMATION);
+        mRandom = random;
+    }
+
+    /**
+     * Generates a new master key and wraps it with {@code cipher}, the authenticated cipher of
+     * the dialog initialized for encryption. Store {@link #getWrappedMasterKey()} to decrypt the
+     * records later.
+     */
+    public static RecordBatchCipher create (Cipher cipher, CryptoProfile profile)
+            throws GeneralSecurityException {
+        SecureRandom random = new SecureRandom ();
+        byte[] masterKey = new byte[MASTER_KEY_SIZE];
+        random.nextBytes (masterKey);
+        SecretEnvelope wrapped = SecretEnvelope.seal (cipher, profile, masterKey);
+        return new RecordBatchCipher (masterKey, wrapped, random);
+    }
+
+    /**
+     * Unwraps the master key with {@code cipher}, the authenticated cipher of the dialog
+     * initialized for decryption with the IV of {@code wrappedMasterKey}.
+     */
+    public static RecordBatchCipher unwrap (Cipher cipher, SecretEnvelope wrappedMasterKey)
+            throws GeneralSecurityException {
+        byte[] masterKey = wrappedMasterKey.open (cipher);
+        if (masterKey.length != MASTER_KEY_SIZE) {
+            throw new GeneralSecurityException ("Unexpected master key size " + masterKey.length);
+        }
+        return new RecordBatchCipher (masterKey, wrappedMasterKey, new SecureRandom ());
+    }
+
+    public SecretEnvelope getWrappedMasterKey () {
+        return mWrappedMasterKey;
+    }
+
+    public SecretEnvelope encrypt (String recordId, byte[] payload) throws GeneralSecurityException {
+        long start = System.nanoTime ();
+        byte[] iv = new byte[IV_SIZE];
+        mRandom.nextBytes (iv);
+        byte[] id = recordId.getBytes (UTF_8);
+        mCipher.init (Cipher.ENCRYPT_MODE, deriveKey (id),
+                new GCMParameterSpec (CryptoProfile.GCM_TAG_LENGTH_BITS, iv));
+        mCipher.updateAAD (id);
+        SecretEnvelope envelope = new SecretEnvelope (iv, mCipher.doFinal (payload), TAG_SIZE);
+        record (start);
+        return envelope;
+    }
+
+    public byte[] decrypt (String recordId, SecretEnvelope envelope) throws GeneralSecurityException {
+        long start = System.nanoTime ();
+        byte[] id = recordId.getBytes (UTF_8);
+        mCipher.init (Cipher.DECRYPT_MODE, deriveKey (id),
+                new GCMParameterSpec (CryptoProfile.GCM_TAG_LENGTH_BITS, envelope.getIv ()));
+        mCipher.updateAAD (id);
+        byte[] payload = envelope.open (mCipher);
+        record (start);
+        return payload;
+    }
+
+    /**
+     * Encrypts every payload under its record id.
+     *
+     * @return the envelopes by record id, in the iteration order of {@code payloads}
+     */
+    public Map<String, SecretEnvelope> encryptAll (Map<String, byte[]> payloads)
+            throws GeneralSecurityException {
+        Map<String, SecretEnvelope> envelopes = new LinkedHashMap<> (payloads.size () * 2);
+        for (Map.Entry<String, byte[]> entry : payloads.entrySet ()) {
+            envelopes.put (entry.getKey (), encrypt (entry.getKey (), entry.getValue ()));
+        }
+        return envelopes;
+    }
+
+    /**
+     * Decrypts every envelope under its record id.
+     *
+     * @return the payloads by record id, in the iteration order of {@code envelopes}
+     */
+    public Map<String, byte[]> decryptAll (Map<String, SecretEnvelope> envelopes)
+            throws GeneralSecurityException {
+        Map<String, byte[]> payloads = new LinkedHashMap<> (envelopes.size () * 2);
+        for (Map.Entry<String, SecretEnvelope> entry : envelopes.entrySet ()) {
+            payloads.put (entry.getKey (), decrypt (entry.getKey (), entry.getValue ()));
+        }
+        return payloads;
+    }
+
+    private SecretKeySpec deriveKey (byte[] recordId) {
+        mKdf.update (KDF_LABEL);
+        mKdf.update (recordId);
+        return new SecretKeySpec (mKdf.doFinal (), "AES");
+    }
+
+    private void record (long start) {
+        mRecordNanos += System.nanoTime () - start;
+        mRecordCount++;
+    }
+
+    public long getRecordCount () {
+        return mRecordCount;
+    }
+
+    /**
+     * @return the records encrypted or decrypted per second, excluding the master key operation
+     */
+    public double getRecordsPerSecond () {
+        return mRecordNanos == 0 ? 0 : mRecordCount * 1e9 / mRecordNanos;
+    }
+
+    /**
+     * Overwrites the copy of the master key held by this instance, which must not be used
+     * afterwards.
+     */
+    public void destroy () {
+        Arrays.fill (mMasterKey, (byte) 0);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Verifies passwords with the server through a {@link PasswordTransport}, on a background
+ * executor. At most a fixed number of verifications are in flight at once; beyond that a new one
+ * fails right away instead of queueing behind requests that may be timing out.
+ */
+public class RemotePasswordVerifier {
+
+    /**
+     * Receives the outcome of a verification, on the executor it ran on. Not called once the
+     * request has been cancelled.
+     */
+    public interface Callback {
+        void onVerified (boolean correct);
+
+        void onFailed (IOException e);
+    }
+
+    /**
+     * A verification in flight.
+     */
+    public interface Request {
+        /**
+         * Aborts the verification. The callback will not be called.
+         */
+        void cancel ();
+    }
+
+    private final PasswordTransport mTransport;
+    private final Executor mExecutor;
+    private final Semaphore mInFlight;
+    private final int mMaxInFlight;
+
+    private int mRejectedCount;
+
+    /**
+     * @param maxInFlight how many verifications may run at once
+     */
+    public RemotePasswordVerifier (PasswordTransport transport, Executor executor, int maxInFlight) {
+        mTransport = transport;
+        mExecutor = executor;
+        mInFlight = new Semaphore (maxInFlight);
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Starts verifying {@code password}. The array is cleared once it has been sent.
+     *
+     * @throws RejectedExecutionException if the executor does not take the verification
+     */
+    public Request verify (final char[] password, final Callback callback) {
+        if (! mInFlight.tryAcquire ()) {
+            synchronized (this) {
+                mRejectedCount++;
+            }
+            Arrays.fill (password, '\0');
+            final CallRequest rejected = new CallRequest (null);
+            mExecutor.execute (new Runnable () {
+                @Override
+                public void run () {
+                    if (! rejected.mCancelled) {
+                        callback.onFailed (new IOException ("Too many password verifications in flight"));
+                    }
+                }
+            });
+            return rejected;
+        }
+        final PasswordTransport.Call call = mTransport.newCall (password);
+        final CallRequest request = new CallRequest (call);
+        Runnable verification = new Runnable () {
+            @Override
+            public void run () {
+                try {
+                    if (request.mCancelled) {
+                        return;
+                    }
+                    boolean correct;
+                    try {
+                        correct = call.execute ();
+                    } catch (IOException e) {
+                        if (! request.mCancelled) {
+                            callback.onFailed (e);
+                        }
+                        return;
+                    }
+                    if (! request.mCancelled) {
+                        callback.onVerified (correct);
+                    }
+                } finally {
+                    Arrays.fill (password, '\0');
+                    mInFlight.release ();
+                }
+            }
+        };
+        try {
+            mExecutor.execute (verification);
+        } catch (RejectedExecutionException e) {
+            // The verification will never run to release its permit.
+            Arrays.fill (password, '\0');
+            mInFlight.release ();
+            throw e;
+        }
+        return request;
+    }
+
+    /**
+     * @return how many verifications are running
+     */
+    public int getInFlightCount () {
+        return mMaxInFlight - mInFlight.availablePermits ();
+    }
+
+    /**
+     * @return how many verifications failed because too many were in flight
+     */
+    public synchronized int getRejectedCount () {
+        return mRejectedCount;
+    }
+
+    private static final class CallRequest implements Request {
+        private final PasswordTransport.Call mCall;
+        volatile boolean mCancelled;
+
+        /**
+         * @param call null for a request that was rejected without being sent
+         */
+        CallRequest (PasswordTransport.Call call) {
+            mCall = call;
+        }
+
+        @Override
+        public void cancel () {
+            mCancelled = true;
+            if (mCall != null) {
+                mCall.cancel ();
+            }
+        }
+    }
+}
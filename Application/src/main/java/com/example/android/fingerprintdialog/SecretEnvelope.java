@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+/**
+ * A secret encrypted at rest together with the IV needed to decrypt it. The binary layout is:
+ * <pre>
+ * version     1 byte
+ * IV length   1 byte
+ * tag length  1 byte, 0 without authentication
+ * body length 4 bytes, big endian
+ * IV
+ * body        ciphertext followed by the tag
+ * </pre>
+ * The ciphertext and tag are kept together in the order {@code Cipher.doFinal} produces and
+ * expects them, so sealing and opening are a single cipher pass each.
+ */
+public final class SecretEnvelope {
+
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 7;
+    // An envelope holds a token or a key, not a file: refuse to read anything larger.
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private final byte[] mIv;
+    private final byte[] mBody;
+    private final int mTagLength;
+
+    public SecretEnvelope (byte[] iv, byte[] body, int tagLength) {
+        if (iv.length > 255 || tagLength < 0 || tagLength > 255 || tagLength > body.length) {
+            throw new IllegalArgumentException ("Invalid IV or tag length");
+        }
+        mIv = iv;
+        mBody = body;
+        mTagLength = tagLength;
+    }
+
+    /**
+     * Encrypts {@code plaintext} with a cipher initialized for encryption, e.g. the one of an
+     * authenticated {@code CryptoObject}.
+     */
+    public static SecretEnvelope seal (Cipher cipher, CryptoProfile profile, byte[] plaintext)
+            throws GeneralSecurityException {
+        byte[] body = cipher.doFinal (plaintext);
+        int tagLength = profile.isAuthenticated () ? CryptoProfile.GCM_TAG_LENGTH_BITS / 8 : 0;
+        return new SecretEnvelope (cipher.getIV (), body, tagLength);
+    }
+
+    /**
+     * Decrypts the body with a cipher initialized for decryption with {@link #getIv()}.
+     */
+    public byte[] open (Cipher cipher) throws GeneralSecurityException {
+        return cipher.doFinal (mBody);
+    }
+
+    /**
+     * @return true if {@code cipher} was initialized to decrypt this envelope, i.e. with its IV.
+     * A cipher initialized for encryption carries a fresh IV of its own, picked by the key store.
+     */
+    public boolean isOpenableWith (Cipher cipher) {
+        return Arrays.equals (mIv, cipher.getIV ());
+    }
+
+    public byte[] getIv () {
+        return mIv;
+    }
+
+    /**
+     * @return the ciphertext followed by the tag
+     */
+    public byte[] getBody () {
+        return mBody;
+    }
+
+    public int getTagLength () {
+        return mTagLength;
+    }
+
+    /**
+     * @return the size of the envelope once written
+     */
+    public int getSize () {
+        return HEADER_SIZE + mIv.length + mBody.length;
+    }
+
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put ((byte) VERSION)
+                .put ((byte) mIv.length)
+                .put ((byte) mTagLength)
+                .putInt (mBody.length)
+                .put (mIv)
+                .put (mBody);
+    }
+
+    public static SecretEnvelope readFrom (ByteBuffer buffer) throws IOException {
+        if (buffer.remaining () < HEADER_SIZE) {
+            throw new IOException ("Truncated envelope");
+        }
+        int version = buffer.get () & 0xff;
+        if (version != VERSION) {
+            throw new IOException ("Unsupported envelope version " + version);
+        }
+        int ivLength = buffer.get () & 0xff;
+        int tagLength = buffer.get () & 0xff;
+        int bodyLength = buffer.getInt ();
+        if (bodyLength < tagLength || buffer.remaining () != ivLength + bodyLength) {
+            throw new IOException ("Truncated envelope");
+        }
+        byte[] iv = new byte[ivLength];
+        buffer.get (iv);
+        byte[] body = new byte[bodyLength];
+        buffer.get (body);
+        return new SecretEnvelope (iv, body, tagLength);
+    }
+
+    /**
+     * Writes the envelope to {@code file}. It is written to a temporary file first and renamed
+     * over the previous one, so a crash never leaves a half written envelope behind.
+     */
+    public void writeTo (File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate (getSize ());
+        writeTo (buffer);
+        buffer.flip ();
+
+        File temp = new File (file.getPath () + ".tmp");
+        FileOutputStream out = new FileOutputStream (temp);
+        try {
+            FileChannel channel = out.getChannel ();
+            while (buffer.hasRemaining ()) {
+                channel.write (buffer);
+            }
+            channel.force (true);
+        } finally {
+            out.close ();
+        }
+        if (! temp.renameTo (file)) {
+            throw new IOException ("Failed to rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads an envelope written by {@link #writeTo(File)} with a single read of the file.
+     */
+    public static SecretEnvelope readFrom (File file) throws IOException {
+        FileInputStream in = new FileInputStream (file);
+        try {
+            FileChannel channel = in.getChannel ();
+            long size = channel.size ();
+            if (size > MAX_SIZE) {
+                throw new IOException ("Envelope of " + size + " bytes is too large");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate ((int) size);
+            while (buffer.hasRemaining ()) {
+                if (channel.read (buffer) < 0) {
+                    throw new IOException ("Truncated envelope");
+                }
+            }
+            buffer.flip ();
+            return readFrom (buffer);
+        } finally {
+            in.close ();
+        }
+    }
+}
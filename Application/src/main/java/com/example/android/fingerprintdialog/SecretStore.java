@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores many small {@link SecretEnvelope}s, encrypted with the fingerprint-bound key, in a
+ * single append-only file that is memory-mapped. An in-memory index maps each name to the
+ * latest record for it, so lookups never scan the file.
+ * <p>
+ * Changes are appended to the mapping right away and become visible to {@link #get}, but they
+ * only survive a restart once {@link #commit()} has been called: a commit flushes every record
+ * written since the previous one, then moves the committed end in the header, so a batch of
+ * changes costs two flushes and is either kept entirely or lost entirely. Records left behind by
+ * overwrites and removals are reclaimed by {@link #compact()}, which a commit runs on its own
+ * once they take up more than half of the file.
+ * <p>
+ * File layout: a 16 byte header (magic, version, committed end, reserved), then records of
+ * <pre>
+ * type         1 byte, put or remove
+ * name length  2 bytes
+ * value length 4 bytes, 0 for a removal
+ * name         UTF-8
+ * value        a serialized {@link SecretEnvelope}
+ * </pre>
+ * The methods are synchronized; open a single instance per file.
+ */
+public class SecretStore implements Closeable {
+
+    private static final int MAGIC = 0x46505353; // "FPSS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int COMMITTED_END_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 7;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    // Below this, reclaiming the space is not worth rewriting the file.
+    private static final int MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName ("UTF-8");
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private final Map<String, Entry> mIndex = new HashMap<> ();
+
+    // Where the next record is appended.
+    private int mEnd;
+    // Bytes of records that have been overwritten or removed, including the removals themselves.
+    private int mDeadBytes;
+    private boolean mDirty;
+
+    private int mCommitCount;
+    private int mCompactionCount;
+
+    private static final class Entry {
+        final int mRecordOffset;
+        final int mRecordSize;
+        final int mValueOffset;
+        final int mValueLength;
+
+        Entry (int recordOffset, int recordSize, int valueOffset, int valueLength) {
+            mRecordOffset = recordOffset;
+            mRecordSize = recordSize;
+            mValueOffset = valueOffset;
+            mValueLength = valueLength;
+        }
+    }
+
+    /**
+     * Opens the store in {@code file}, creating it if needed, and rebuilds the index from its
+     * committed records.
+     */
+    public SecretStore (File file) throws IOException {
+        mFile = file;
+        open ();
+    }
+
+    private void open () throws IOException {
+        mRandomAccessFile = new RandomAccessFile (mFile, "rw");
+        long length = mRandomAccessFile.length ();
+        if (length == 0) {
+            map (INITIAL_CAPACITY);
+            mBuffer.putInt (0, MAGIC);
+            mBuffer.putInt (4, VERSION);
+            mBuffer.putInt (COMMITTED_END_OFFSET, HEADER_SIZE);
+            mBuffer.force ();
+            mEnd = HEADER_SIZE;
+            return;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException (mFile + " is too large");
+        }
+        map ((int) length);
+        if (mBuffer.getInt (0) != MAGIC) {
+            throw new IOException (mFile + " is not a secret store");
+        }
+        int version = mBuffer.getInt (4);
+        if (version != VERSION) {
+            throw new IOException ("Unsupported secret store version " + version);
+        }
+        int committedEnd = mBuffer.getInt (COMMITTED_END_OFFSET);
+        if (committedEnd < HEADER_SIZE || committedEnd > length) {
+            throw new IOException (mFile + " is corrupt");
+        }
+        mEnd = HEADER_SIZE;
+        while (mEnd < committedEnd) {
+            readRecord (mEnd);
+        }
+    }
+
+    private void map (int capacity) throws IOException {
+        mBuffer = mRandomAccessFile.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Indexes the record at {@code offset} and moves the end past it.
+     */
+    private void readRecord (int offset) throws IOException {
+        byte type = mBuffer.get (offset);
+        int nameLength = mBuffer.getShort (offset + 1) & 0xffff;
+        int valueLength = mBuffer.getInt (offset + 3);
+        int committedEnd = mBuffer.getInt (COMMITTED_END_OFFSET);
+        // Not compared as offset + recordSize, which a corrupt value length can overflow.
+        if ((type != TYPE_PUT && type != TYPE_REMOVE) || valueLength < 0
+                || valueLength > committedEnd - offset - RECORD_HEADER_SIZE - nameLength) {
+            throw new IOException (mFile + " is corrupt at " + offset);
+        }
+        int recordSize = RECORD_HEADER_SIZE + nameLength + valueLength;
+        byte[] name = new byte[nameLength];
+        ByteBuffer view = mBuffer.duplicate ();
+        view.position (offset + RECORD_HEADER_SIZE);
+        view.get (name);
+        index (new String (name, UTF_8), type, offset, recordSize, valueLength);
+        mEnd = offset + recordSize;
+    }
+
+    private void index (String name, byte type, int offset, int recordSize, int valueLength) {
+        Entry previous;
+        if (type == TYPE_PUT) {
+            previous = mIndex.put (name, new Entry (offset, recordSize,
+                    offset + recordSize - valueLength, valueLength));
+        } else {
+            previous = mIndex.remove (name);
+            mDeadBytes += recordSize;
+        }
+        if (previous != null) {
+            mDeadBytes += previous.mRecordSize;
+        }
+    }
+
+    /**
+     * @return the envelope stored under {@code name}, or null if there is none
+     */
+    public synchronized SecretEnvelope get (String name) throws IOException {
+        Entry entry = mIndex.get (name);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer view = mBuffer.duplicate ();
+        view.limit (entry.mValueOffset + entry.mValueLength);
+        view.position (entry.mValueOffset);
+        return SecretEnvelope.readFrom (view.slice ());
+    }
+
+    public synchronized boolean contains (String name) {
+        return mIndex.containsKey (name);
+    }
+
+    public synchronized Set<String> names () {
+        return new HashSet<> (mIndex.keySet ());
+    }
+
+    public synchronized int size () {
+        return mIndex.size ();
+    }
+
+    /**
+     * Stores {@code envelope} under {@code name}, replacing any previous one. Durable once
+     * {@link #commit()} has returned.
+     */
+    public synchronized void put (String name, SecretEnvelope envelope) throws IOException {
+        append (TYPE_PUT, name, envelope);
+    }
+
+    /**
+     * Removes the envelope stored under {@code name}, if any. Durable once {@link #commit()} has
+     * returned.
+     */
+    public synchronized void remove (String name) throws IOException {
+        if (mIndex.containsKey (name)) {
+            append (TYPE_REMOVE, name, null);
+        }
+    }
+
+    private void append (byte type, String name, SecretEnvelope envelope) throws IOException {
+        byte[] nameBytes = name.getBytes (UTF_8);
+        if (nameBytes.length > 0xffff) {
+            throw new IllegalArgumentException ("Name is too long");
+        }
+        int valueLength = envelope != null ? envelope.getSize () : 0;
+        int recordSize = RECORD_HEADER_SIZE + nameBytes.length + valueLength;
+        ensureCapacity (mEnd + recordSize);
+
+        int offset = mEnd;
+        mBuffer.position (offset);
+        mBuffer.put (type).putShort ((short) nameBytes.length).putInt (valueLength).put (nameBytes);
+        if (envelope != null) {
+            envelope.writeTo (mBuffer);
+        }
+        index (name, type, offset, recordSize, valueLength);
+        mEnd = offset + recordSize;
+        mDirty = true;
+    }
+
+    private void ensureCapacity (int capacity) throws IOException {
+        if (capacity <= mBuffer.capacity ()) {
+            return;
+        }
+        int newCapacity = mBuffer.capacity ();
+        while (newCapacity < capacity) {
+            newCapacity *= 2;
+        }
+        map (newCapacity);
+    }
+
+    /**
+     * Makes every change since the previous commit durable, as one batch.
+     */
+    public synchronized void commit () throws IOException {
+        if (flush () && mDeadBytes > MIN_COMPACTION_BYTES && mDeadBytes > mEnd / 2) {
+            compact ();
+        }
+    }
+
+    /**
+     * @return true if there was anything to flush
+     */
+    private boolean flush () throws IOException {
+        if (! mDirty) {
+            return false;
+        }
+        // The records must be on disk before the header points past them.
+        mBuffer.force ();
+        mBuffer.putInt (COMMITTED_END_OFFSET, mEnd);
+        mBuffer.force ();
+        mDirty = false;
+        mCommitCount++;
+        return true;
+    }
+
+    /**
+     * Rewrites the file with only the live records. Commits any pending changes first.
+     */
+    public synchronized void compact () throws IOException {
+        flush ();
+        int liveBytes = mEnd - HEADER_SIZE - mDeadBytes;
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < HEADER_SIZE + liveBytes) {
+            capacity *= 2;
+        }
+
+        File compacted = new File (mFile.getPath () + ".compact");
+        RandomAccessFile out = new RandomAccessFile (compacted, "rw");
+        try {
+            out.setLength (0);
+            MappedByteBuffer buffer = out.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.putInt (MAGIC).putInt (VERSION).putInt (0).putInt (0);
+            for (Entry entry : mIndex.values ()) {
+                ByteBuffer record = mBuffer.duplicate ();
+                record.limit (entry.mRecordOffset + entry.mRecordSize);
+                record.position (entry.mRecordOffset);
+                buffer.put (record);
+            }
+            buffer.putInt (COMMITTED_END_OFFSET, buffer.position ());
+            buffer.force ();
+        } finally {
+            out.close ();
+        }
+
+        mRandomAccessFile.close ();
+        if (! compacted.renameTo (mFile)) {
+            throw new IOException ("Failed to rename " + compacted + " to " + mFile);
+        }
+        mIndex.clear ();
+        mDeadBytes = 0;
+        open ();
+        mCompactionCount++;
+    }
+
+    /**
+     * @return the bytes taken by records that compaction would reclaim
+     */
+    public synchronized int getDeadBytes () {
+        return mDeadBytes;
+    }
+
+    /**
+     * @return the bytes taken by the header and every record, live or not
+     */
+    public synchronized int getUsedBytes () {
+        return mEnd;
+    }
+
+    public synchronized int getCommitCount () {
+        return mCommitCount;
+    }
+
+    public synchronized int getCompactionCount () {
+        return mCompactionCount;
+    }
+
+    /**
+     * Closes the file. Changes that have not been committed are lost.
+     */
+    @Override
+    public synchronized void close () throws IOException {
+        mRandomAccessFile.close ();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+/**
+ * Controls the delays of the {@link FingerprintDialog} UI around an authentication result.
+ */
+public class TimingPolicy {
+
+    /**
+     * The delays the sample always used: the success icon is shown for 1.3 seconds before the
+     * result reaches the activity.
+     */
+    public static final TimingPolicy DEFAULT = new TimingPolicy (1300, 1600, 1600, false);
+
+    /**
+     * Delivers the result to the activity as soon as the fingerprint is recognized, while the
+     * success icon is still shown for the default time before the dialog is dismissed.
+     */
+    public static final TimingPolicy DELIVER_IMMEDIATELY = new TimingPolicy (1300, 1600, 1600, true);
+
+    /**
+     * No delays at all: the result is delivered and the dialog dismissed right away.
+     */
+    public static final TimingPolicy ZERO_DELAY = new TimingPolicy (0, 1600, 0, true);
+
+    private final long mSuccessDelayMillis;
+    private final long mErrorResetMillis;
+    private final long mFallbackDelayMillis;
+    private final boolean mDeliverImmediately;
+
+    /**
+     * @param successDelayMillis  how long the success icon is shown before the dialog goes away
+     * @param errorResetMillis    how long a help or failure message is shown before the hint is
+     *                            restored
+     * @param fallbackDelayMillis how long a fatal error is shown before switching to password
+     * @param deliverImmediately  whether the result reaches the activity before, rather than
+     *                            after, the success delay
+     */
+    public TimingPolicy (long successDelayMillis, long errorResetMillis, long fallbackDelayMillis,
+                         boolean deliverImmediately) {
+        mSuccessDelayMillis = successDelayMillis;
+        mErrorResetMillis = errorResetMillis;
+        mFallbackDelayMillis = fallbackDelayMillis;
+        mDeliverImmediately = deliverImmediately;
+    }
+
+    public long getSuccessDelayMillis () {
+        return mSuccessDelayMillis;
+    }
+
+    public long getErrorResetMillis () {
+        return mErrorResetMillis;
+    }
+
+    public long getFallbackDelayMillis () {
+        return mFallbackDelayMillis;
+    }
+
+    public boolean isDeliverImmediately () {
+        return mDeliverImmediately;
+    }
+}
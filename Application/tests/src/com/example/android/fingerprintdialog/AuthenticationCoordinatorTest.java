@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.fingerprintdialog;
+
+import android.app.FragmentManager;
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Checks how {@link AuthenticationCoordinator} joins, fans out and chains authentications, with
+ * a dialog that only counts how often it is shown. The outcome and the dismissal of the dialog
+ * are reported to the coordinator by the test itself; what the coordinator posts to the main
+ * thread is run by {@code waitForIdleSync}.
+ */
+public class AuthenticationCoordinatorTest extends InstrumentationTestCase {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor () {
+        @Override
+        public void execute (Runnable command) {
+            command.run ();
+        }
+    };
+
+    private CountingDialog mDialog;
+    private AuthenticationCoordinator mCoordinator;
+
+    /**
+     * Counts the shows instead of preparing the crypto object and showing itself.
+     */
+    public static class CountingDialog extends FingerprintDialog {
+
+        private int mShowCount;
+
+        @Override
+        public synchronized void showFingerprintDialog (Context context, FragmentManager fragmentManager) {
+            mShowCount++;
+        }
+
+        synchronized int getShowCount () {
+            return mShowCount;
+        }
+    }
+
+    @Override
+    protected void setUp () throws Exception {
+        super.setUp ();
+        getInstrumentation ().runOnMainSync (new Runnable () {
+            @Override
+            public void run () {
+                mDialog = new CountingDialog ();
+                mCoordinator = new AuthenticationCoordinator (mDialog, DIRECT_EXECUTOR);
+            }
+        });
+    }
+
+    private void authenticate (FingerprintDialog.AuthenticationListener listener) {
+        mCoordinator.authenticate (getInstrumentation ().getTargetContext (), null, listener);
+    }
+
+    public void testRequestsInFlightJoinTheAuthentication () {
+        RecordingAuthenticationListener first = new RecordingAuthenticationListener ("first");
+        RecordingAuthenticationListener second = new RecordingAuthenticationListener ("second");
+
+        authenticate (first);
+        authenticate (second);
+        authenticate (first);
+
+        assertEquals (1, mDialog.getShowCount ());
+        assertTrue (mCoordinator.isInFlight ());
+        assertEquals (1, mCoordinator.getAuthenticationCount ());
+        assertEquals (2, mCoordinator.getDuplicateCount ());
+    }
+
+    public void testOutcomeIsFannedOutOncePerCaller () {
+        RecordingAuthenticationListener first = new RecordingAuthenticationListener ("first");
+        RecordingAuthenticationListener second = new RecordingAuthenticationListener ("second");
+        authenticate (first);
+        authenticate (second);
+        authenticate (first);
+
+        mCoordinator.onSuccessfulAuthentication (true, null);
+
+        assertEquals (1, first.getSuccessCount ());
+        assertEquals (1, second.getSuccessCount ());
+        assertEquals (0, first.getCancellationCount ());
+    }
+
+    public void testNextPromptStartsOnlyOnceTheDialogIsDismissed () {
+        RecordingAuthenticationListener first = new RecordingAuthenticationListener ("first");
+        RecordingAuthenticationListener next = new RecordingAuthenticationListener ("next");
+        authenticate (first);
+
+        // Delivered while the dialog is still up, as with TimingPolicy.DELIVER_IMMEDIATELY.
+        mCoordinator.onSuccessfulAuthentication (true, null);
+        authenticate (next);
+        getInstrumentation ().waitForIdleSync ();
+
+        assertEquals (1, first.getSuccessCount ());
+        assertEquals (0, next.getSuccessCount ());
+        assertEquals (1, mDialog.getShowCount ());
+        assertTrue (mCoordinator.isInFlight ());
+
+        mCoordinator.onDismissed ();
+
+        assertEquals (2, mDialog.getShowCount ());
+        assertEquals (2, mCoordinator.getAuthenticationCount ());
+        mCoordinator.onSuccessfulAuthentication (true, null);
+        assertEquals (1, first.getSuccessCount ());
+        assertEquals (1, next.getSuccessCount ());
+    }
+
+    public void testAuthenticationEndsOnceDismissedAndDelivered () {
+        RecordingAuthenticationListener first = new RecordingAuthenticationListener ("first");
+        authenticate (first);
+
+        // Dismissed by the user; the cancellation is delivered on the executor afterwards.
+        mCoordinator.onDismissed ();
+        assertTrue (mCoordinator.isInFlight ());
+        mCoordinator.onAuthenticationCancelled ();
+        getInstrumentation ().waitForIdleSync ();
+
+        assertEquals (1, first.getCancellationCount ());
+        assertFalse (mCoordinator.isInFlight ());
+        authenticate (first);
+        assertEquals (2, mDialog.getShowCount ());
+        assertEquals (0, mCoordinator.getDuplicateCount ());
+    }
+
+    public void testNoPromptStartsWithoutRequestsAfterDismissal () {
+        authenticate (new RecordingAuthenticationListener ("first"));
+        mCoordinator.onSuccessfulAuthentication (true, null);
+        mCoordinator.onDismissed ();
+        getInstrumentation ().waitForIdleSync ();
+
+        assertFalse (mCoordinator.isInFlight ());
+        assertEquals (1, mDialog.getShowCount ());
+    }
+}
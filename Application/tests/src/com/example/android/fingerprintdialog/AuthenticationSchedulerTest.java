@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.fingerprintdialog;
+
+import android.app.Activity;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks the order, merging, expiry and cancellation of the requests queued by
+ * {@link AuthenticationScheduler}, with a coordinator that only counts the prompts it is asked
+ * for. The test answers each prompt itself; what the scheduler posts to the main thread, such
+ * as moving on to the next request, is run by {@code waitForIdleSync}.
+ */
+public class AuthenticationSchedulerTest extends InstrumentationTestCase {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor () {
+        @Override
+        public void execute (Runnable command) {
+            command.run ();
+        }
+    };
+
+    private Activity mHost;
+    private CountingCoordinator mCoordinator;
+    private AuthenticationScheduler mScheduler;
+    private final List<String> mLog = new ArrayList<> ();
+
+    /**
+     * Counts the prompts instead of showing the dialog.
+     */
+    static class CountingCoordinator extends AuthenticationCoordinator {
+
+        private int mPromptCount;
+
+        CountingCoordinator () {
+            super (new FingerprintDialog (), DIRECT_EXECUTOR);
+        }
+
+        @Override
+        public synchronized void authenticate (Context context, FragmentManager fragmentManager,
+                                               FingerprintDialog.AuthenticationListener listener) {
+            mPromptCount++;
+        }
+
+        synchronized int getPromptCount () {
+            return mPromptCount;
+        }
+    }
+
+    @Override
+    protected void setUp () throws Exception {
+        super.setUp ();
+        getInstrumentation ().runOnMainSync (new Runnable () {
+            @Override
+            public void run () {
+                mHost = new Activity ();
+                mCoordinator = new CountingCoordinator ();
+                mScheduler = new AuthenticationScheduler (mCoordinator);
+            }
+        });
+    }
+
+    private RecordingAuthenticationListener listener (String name) {
+        return new RecordingAuthenticationListener (name, mLog);
+    }
+
+    /**
+     * Answers the prompt shown, then lets the scheduler move on to the next request.
+     */
+    private void answerPrompt () {
+        mScheduler.onSuccessfulAuthentication (true, null);
+        getInstrumentation ().waitForIdleSync ();
+    }
+
+    public void testRequestsArePromptedByPriorityDeadlineThenSubmission () {
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_LOW,
+                AuthenticationScheduler.NO_TIMEOUT, listener ("low"));
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, listener ("normal"));
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, listener ("normal later"));
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_NORMAL, 60000, listener ("normal deadline"));
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_HIGH,
+                AuthenticationScheduler.NO_TIMEOUT, listener ("high"));
+        assertEquals (5, mScheduler.getQueueDepth ());
+        assertEquals (0, mCoordinator.getPromptCount ());
+
+        mScheduler.setHost (mHost);
+        for (int i = 0; i < 5; i++) {
+            answerPrompt ();
+        }
+
+        assertEquals (Arrays.asList ("high", "normal deadline", "normal", "normal later", "low"), mLog);
+        assertEquals (5, mCoordinator.getPromptCount ());
+        assertEquals (5, mScheduler.getPromptCount ());
+        assertEquals (5, mScheduler.getMaxQueueDepth ());
+    }
+
+    public void testQueuedRequestsWithTheSameMergeKeyShareAPrompt () {
+        RecordingAuthenticationListener first = listener ("first");
+        RecordingAuthenticationListener other = listener ("other");
+        RecordingAuthenticationListener second = listener ("second");
+        mScheduler.submit ("checkout", AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, first);
+        mScheduler.submit ("settings", AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, other);
+        mScheduler.submit ("checkout", AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, second);
+
+        mScheduler.setHost (mHost);
+        answerPrompt ();
+
+        assertEquals (1, first.getSuccessCount ());
+        assertEquals (1, second.getSuccessCount ());
+        assertEquals (0, other.getSuccessCount ());
+        assertEquals (1, mScheduler.getMergedCount ());
+        // The other request got the next prompt.
+        assertEquals (2, mCoordinator.getPromptCount ());
+        assertEquals (0, mScheduler.getQueueDepth ());
+    }
+
+    public void testRequestJoinsThePromptShownForItsMergeKey () {
+        RecordingAuthenticationListener first = listener ("first");
+        RecordingAuthenticationListener second = listener ("second");
+        mScheduler.setHost (mHost);
+        AuthenticationScheduler.Request request = mScheduler.submit ("checkout",
+                AuthenticationScheduler.PRIORITY_NORMAL, AuthenticationScheduler.NO_TIMEOUT, first);
+        mScheduler.submit ("checkout", AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, second);
+        // A listener asking again with the same key keeps its request.
+        assertSame (request, mScheduler.submit ("checkout", AuthenticationScheduler.PRIORITY_HIGH,
+                AuthenticationScheduler.NO_TIMEOUT, first));
+
+        assertEquals (1, mCoordinator.getPromptCount ());
+        assertEquals (0, mScheduler.getQueueDepth ());
+        answerPrompt ();
+
+        assertEquals (1, first.getSuccessCount ());
+        assertEquals (1, second.getSuccessCount ());
+        assertEquals (1, mScheduler.getMergedCount ());
+        assertEquals (1, mCoordinator.getPromptCount ());
+    }
+
+    public void testQueuedRequestExpiresAtItsDeadline () {
+        RecordingAuthenticationListener expiring = listener ("expiring");
+        RecordingAuthenticationListener waiting = listener ("waiting");
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_HIGH, 50, expiring);
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_LOW,
+                AuthenticationScheduler.NO_TIMEOUT, waiting);
+
+        // No host: both wait, until the first one expires.
+        SystemClock.sleep (200);
+        getInstrumentation ().waitForIdleSync ();
+
+        assertEquals (1, expiring.getCancellationCount ());
+        assertEquals (1, mScheduler.getExpiredCount ());
+        assertEquals (1, mScheduler.getQueueDepth ());
+        mScheduler.setHost (mHost);
+        answerPrompt ();
+        assertEquals (Arrays.asList ("expiring", "waiting"), mLog);
+    }
+
+    public void testCancelledRequestsAreNotPromptedNorAnswered () {
+        RecordingAuthenticationListener queued = listener ("queued");
+        RecordingAuthenticationListener first = listener ("first");
+        RecordingAuthenticationListener merged = listener ("merged");
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_HIGH,
+                AuthenticationScheduler.NO_TIMEOUT, queued).cancel ();
+        assertEquals (0, mScheduler.getQueueDepth ());
+
+        mScheduler.setHost (mHost);
+        mScheduler.submit ("checkout", AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, first);
+        mScheduler.submit ("checkout", AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, merged).cancel ();
+        answerPrompt ();
+
+        assertEquals (1, mCoordinator.getPromptCount ());
+        assertEquals (Arrays.asList ("first"), mLog);
+        assertEquals (0, queued.getSuccessCount () + queued.getCancellationCount ());
+        assertEquals (0, merged.getSuccessCount () + merged.getCancellationCount ());
+    }
+
+    public void testReplacedListenerIsAnsweredInstead () {
+        RecordingAuthenticationListener destroyed = listener ("destroyed");
+        RecordingAuthenticationListener recreated = listener ("recreated");
+        RecordingAuthenticationListener queued = listener ("queued");
+        mScheduler.setHost (mHost);
+        mScheduler.submit ("checkout", AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, destroyed);
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_NORMAL,
+                AuthenticationScheduler.NO_TIMEOUT, destroyed);
+        mScheduler.submit (null, AuthenticationScheduler.PRIORITY_LOW,
+                AuthenticationScheduler.NO_TIMEOUT, queued);
+
+        // Both the prompted and the queued request of the destroyed listener move over.
+        mScheduler.replaceListener (destroyed, recreated);
+        answerPrompt ();
+        answerPrompt ();
+        answerPrompt ();
+
+        assertEquals (0, destroyed.getSuccessCount ());
+        assertEquals (2, recreated.getSuccessCount ());
+        assertEquals (Arrays.asList ("recreated", "recreated", "queued"), mLog);
+    }
+}
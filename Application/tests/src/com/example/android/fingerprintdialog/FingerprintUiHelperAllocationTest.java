@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog;
+
+import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.widget.TextView;
+
+/**
+ * Checks that the help and failure callbacks of {@link FingerprintDialog.FingerprintUiHelper}
+ * do not allocate once warmed up, as they can arrive several times per second while a finger is
+ * on the sensor.
+ */
+public class FingerprintUiHelperAllocationTest extends InstrumentationTestCase {
+
+    private static final int WARM_UP_ITERATIONS = 100;
+    private static final int ITERATIONS = 1000;
+    private static final int HELP_ID = FingerprintManager.FINGERPRINT_ACQUIRED_TOO_FAST;
+
+    private int mAllocations;
+
+    @SuppressWarnings ("deprecation")
+    public void testHelpAndFailureDoNotAllocate () {
+        final Context context = getInstrumentation ().getTargetContext ();
+        // On the main thread, where the callbacks arrive and the Choreographer lives.
+        getInstrumentation ().runOnMainSync (new Runnable () {
+            @Override
+            public void run () {
+                FingerprintDialog dialog = new FingerprintDialog ();
+                FingerprintDialog.FingerprintUiHelper helper = dialog.new FingerprintUiHelper (
+                        context.getSystemService (FingerprintManager.class),
+                        dialog.getAvailability (context), new TextView (context));
+                CharSequence help = "Finger moved too fast";
+
+                Debug.startAllocCounting ();
+                try {
+                    for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                        callBack (helper, help);
+                    }
+                    mAllocations = 0;
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        mAllocations += callBack (helper, help);
+                    }
+                } finally {
+                    Debug.stopAllocCounting ();
+                }
+            }
+        });
+        assertEquals ("Allocations in " + ITERATIONS + " help and failure callbacks", 0, mAllocations);
+    }
+
+    /**
+     * Delivers a help message, which schedules a frame to show it, then a failure folded into
+     * the same frame. The pending frame is cancelled afterwards, so that every call schedules one
+     * again; only the callbacks themselves are counted.
+     *
+     * @return the allocations made by the callbacks
+     */
+    @SuppressWarnings ("deprecation")
+    private static int callBack (FingerprintDialog.FingerprintUiHelper helper, CharSequence help) {
+        int before = Debug.getThreadAllocCount ();
+        helper.onAuthenticationHelp (HELP_ID, help);
+        helper.onAuthenticationFailed ();
+        int allocations = Debug.getThreadAllocCount () - before;
+        helper.resetMessage ();
+        return allocations;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.fingerprintdialog;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Counts the outcomes it is told about, and appends its name to a shared log on each of them so
+ * that tests can check in which order several listeners were answered.
+ */
+class RecordingAuthenticationListener implements FingerprintDialog.AuthenticationListener {
+
+    private final String mName;
+    @Nullable
+    private final List<String> mLog;
+    private int mSuccessCount;
+    private int mCancellationCount;
+
+    RecordingAuthenticationListener (String name, @Nullable List<String> log) {
+        mName = name;
+        mLog = log;
+    }
+
+    RecordingAuthenticationListener (String name) {
+        this (name, null);
+    }
+
+    @Override
+    public synchronized void onSuccessfulAuthentication (boolean withFingerprint,
+                                                         @Nullable FingerprintManager.CryptoObject cryptoObject) {
+        mSuccessCount++;
+        log ();
+    }
+
+    @Override
+    public synchronized void onAuthenticationCancelled () {
+        mCancellationCount++;
+        log ();
+    }
+
+    private void log () {
+        if (mLog != null) {
+            synchronized (mLog) {
+                mLog.add (mName);
+            }
+        }
+    }
+
+    synchronized int getSuccessCount () {
+        return mSuccessCount;
+    }
+
+    synchronized int getCancellationCount () {
+        return mCancellationCount;
+    }
+
+    @Override
+    public String toString () {
+        return mName;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.CryptoProfile;
+import com.example.android.fingerprintdialog.RecordBatchCipher;
+import com.example.android.fingerprintdialog.SecretEnvelope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Benchmarks encrypting a single record of a batch, in records per second: with a data key
+ * derived from the unwrapped master key by {@link RecordBatchCipher}, against initializing the
+ * cipher of the key-store key for every record. On a device the latter is a hardware-bound
+ * operation, and would need its own fingerprint authentication per record.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+public class BatchEncryptBenchmark {
+
+    @Param ({"64", "1024"})
+    public int payloadSize;
+
+    private RecordBatchCipher mBatchCipher;
+    private Cipher mKeyStoreCipher;
+    private SecretKey mKeyStoreKey;
+    private byte[] mPayload;
+    private int mRecord;
+
+    @Setup
+    public void setUp () throws GeneralSecurityException {
+        mKeyStoreKey = SoftwareKeys.newKeyManager ().getKey ();
+        mKeyStoreCipher = Cipher.getInstance (CryptoProfile.AES_GCM.getTransformation ());
+        mKeyStoreCipher.init (Cipher.ENCRYPT_MODE, mKeyStoreKey);
+        mBatchCipher = RecordBatchCipher.create (mKeyStoreCipher, CryptoProfile.AES_GCM);
+        mPayload = new byte[payloadSize];
+        new Random (42).nextBytes (mPayload);
+    }
+
+    @Benchmark
+    public SecretEnvelope derivedKey () throws GeneralSecurityException {
+        return mBatchCipher.encrypt ("record_" + (mRecord++ & 1023), mPayload);
+    }
+
+    @Benchmark
+    public byte[] keyStoreKeyPerRecord () throws GeneralSecurityException {
+        mKeyStoreCipher.init (Cipher.ENCRYPT_MODE, mKeyStoreKey);
+        return mKeyStoreCipher.doFinal (mPayload);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.CipherPool;
+import com.example.android.fingerprintdialog.FingerprintKeyManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Benchmarks the work {@code FingerprintDialog.initDialog} and {@code createKey} do before the
+ * dialog can be shown.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class CryptoSetupBenchmark {
+
+    private FingerprintKeyManager mKeyManager;
+    private CipherPool mCipherPool;
+    private SecretKey mKey;
+
+    @Setup
+    public void setUp () {
+        mKeyManager = SoftwareKeys.newKeyManager ();
+        mKey = mKeyManager.getKey ();
+        mCipherPool = new CipherPool (4);
+    }
+
+    /**
+     * What every dialog show used to pay: generating a new key.
+     */
+    @Benchmark
+    public SecretKey createKey () {
+        return mKeyManager.recreateKey ();
+    }
+
+    /**
+     * Key lookup once the handle is cached.
+     */
+    @Benchmark
+    public SecretKey cachedKey () {
+        return mKeyManager.getKey ();
+    }
+
+    /**
+     * Key lookup after the cached handle is dropped, going back to the key store.
+     */
+    @Benchmark
+    public SecretKey keyStoreLookup () {
+        mKeyManager.invalidate ();
+        return mKeyManager.getKey ();
+    }
+
+    /**
+     * Cipher resolution and init without the pool.
+     */
+    @Benchmark
+    public Cipher cipherGetInstanceAndInit () throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance (SoftwareKeys.CBC_TRANSFORMATION);
+        cipher.init (Cipher.ENCRYPT_MODE, mKey);
+        return cipher;
+    }
+
+    /**
+     * Cipher resolution and init through the pool, as initDialog does it.
+     */
+    @Benchmark
+    public Cipher pooledCipherInit () throws GeneralSecurityException {
+        Cipher cipher = mCipherPool.borrow (SoftwareKeys.CBC_TRANSFORMATION, SoftwareKeys.KEY_NAME);
+        cipher.init (Cipher.ENCRYPT_MODE, mKey);
+        mCipherPool.release (SoftwareKeys.KEY_NAME, cipher);
+        return cipher;
+    }
+}
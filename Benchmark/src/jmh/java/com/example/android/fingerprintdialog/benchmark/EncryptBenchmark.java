@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Benchmarks what {@code MainActivity.onSuccessfulAuthentication} does with the authenticated
+ * cipher: {@code doFinal} over the payload followed by a Base64 encode of the result.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+public class EncryptBenchmark {
+
+    // 14 bytes is the length of SECRET_MESSAGE.
+    @Param ({"14", "1024", "16384", "1048576"})
+    public int payloadSize;
+
+    private Cipher mCipher;
+    private SecretKey mKey;
+    private byte[] mPayload;
+
+    @Setup
+    public void setUp () throws GeneralSecurityException {
+        mKey = SoftwareKeys.newKeyManager ().getKey ();
+        mCipher = Cipher.getInstance (SoftwareKeys.CBC_TRANSFORMATION);
+        mPayload = new byte[payloadSize];
+        new Random (42).nextBytes (mPayload);
+    }
+
+    @Benchmark
+    public String initEncryptAndEncode () throws GeneralSecurityException {
+        // Every fingerprint authentication comes with a freshly initialized cipher.
+        mCipher.init (Cipher.ENCRYPT_MODE, mKey);
+        byte[] encrypted = mCipher.doFinal (mPayload);
+        return Base64.getEncoder ().encodeToString (encrypted);
+    }
+
+    @Benchmark
+    public byte[] encryptOnly () throws GeneralSecurityException {
+        mCipher.init (Cipher.ENCRYPT_MODE, mKey);
+        return mCipher.doFinal (mPayload);
+    }
+}
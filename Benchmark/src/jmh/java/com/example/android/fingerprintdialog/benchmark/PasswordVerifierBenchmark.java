@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.PasswordVerifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the latency of one {@link PasswordVerifier#verify} for each cost setting, from the
+ * minimum {@link PasswordVerifier#calibrate} returns upwards. A wrong password takes as long as
+ * the right one.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+public class PasswordVerifierBenchmark {
+
+    @Param ({"10000", "50000", "100000", "200000"})
+    public int iterations;
+
+    private PasswordVerifier mVerifier;
+    private char[] mPassword;
+
+    @Setup
+    public void setUp () throws GeneralSecurityException {
+        mPassword = "correct horse battery staple".toCharArray ();
+        mVerifier = PasswordVerifier.enroll (mPassword, iterations);
+    }
+
+    @Benchmark
+    public boolean verify () throws GeneralSecurityException {
+        return mVerifier.verify (mPassword);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.HttpPasswordTransport;
+import com.example.android.fingerprintdialog.PasswordTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a password verification through {@link HttpPasswordTransport} against
+ * {@link StubPasswordServer}. With a server delay beyond the read timeout every call times out,
+ * which measures how long a user waits before the dialog reports the failure.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+public class RemoteVerifyBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param ({"0", "20", "200"})
+    public long serverDelayMillis;
+
+    @Param ({"100"})
+    public int readTimeoutMillis;
+
+    private StubPasswordServer mServer;
+    private PasswordTransport mTransport;
+
+    @Setup
+    public void setUp () throws IOException {
+        mServer = new StubPasswordServer (PASSWORD);
+        mServer.setDelayMillis (serverDelayMillis);
+        mServer.start ();
+        mTransport = new HttpPasswordTransport (mServer.getUrl (), 1000, readTimeoutMillis);
+    }
+
+    @TearDown
+    public void tearDown () {
+        mServer.stop ();
+    }
+
+    /**
+     * @return whether the password was accepted; false when the call timed out
+     */
+    @Benchmark
+    public boolean verify () {
+        try {
+            return mTransport.newCall (PASSWORD.toCharArray ()).execute ();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.SecretEnvelope;
+import com.example.android.fingerprintdialog.SecretStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks updating {@code batchSize} secrets of a {@link SecretStore} with a single commit,
+ * against committing after each of them. The envelopes are the size of an AES-GCM encrypted
+ * 64 byte token; the store does no crypto of its own.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class SecretStoreBenchmark {
+
+    @Param ({"1", "16", "64"})
+    public int batchSize;
+
+    private File mFile;
+    private SecretStore mStore;
+    private SecretEnvelope mEnvelope;
+    private String[] mNames;
+
+    @Setup (Level.Trial)
+    public void setUp () throws IOException {
+        mFile = File.createTempFile ("secret_store", ".bin");
+        mFile.delete ();
+        mStore = new SecretStore (mFile);
+        Random random = new Random (42);
+        byte[] iv = new byte[12];
+        byte[] body = new byte[64 + 16];
+        random.nextBytes (iv);
+        random.nextBytes (body);
+        mEnvelope = new SecretEnvelope (iv, body, 16);
+        mNames = new String[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            mNames[i] = "token_" + i;
+        }
+        mStore.put (mNames[0], mEnvelope);
+        mStore.commit ();
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown () throws IOException {
+        mStore.close ();
+        mFile.delete ();
+    }
+
+    @Benchmark
+    public void putBatchedCommit () throws IOException {
+        for (String name : mNames) {
+            mStore.put (name, mEnvelope);
+        }
+        mStore.commit ();
+    }
+
+    @Benchmark
+    public void putCommitEach () throws IOException {
+        for (String name : mNames) {
+            mStore.put (name, mEnvelope);
+            mStore.commit ();
+        }
+    }
+
+    @Benchmark
+    public SecretEnvelope get () throws IOException {
+        return mStore.get (mNames[0]);
+    }
+}
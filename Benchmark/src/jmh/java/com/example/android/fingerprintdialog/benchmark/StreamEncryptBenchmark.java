@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.CipherStreams;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Benchmarks {@link CipherStreams} from 1 KB to 100 MB. The source generates its bytes and the
+ * sink discards them, so the only memory in play is the chunk buffers. Divide the payload size
+ * by the reported time per operation for throughput in bytes per second.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+public class StreamEncryptBenchmark {
+
+    @Param ({"1024", "1048576", "10485760", "104857600"})
+    public long payloadSize;
+
+    @Param ({"16384"})
+    public int chunkSize;
+
+    private Cipher mCipher;
+    private SecretKey mKey;
+    private CipherStreams mCipherStreams;
+
+    @Setup
+    public void setUp () throws GeneralSecurityException {
+        mKey = SoftwareKeys.newKeyManager ().getKey ();
+        mCipher = Cipher.getInstance (SoftwareKeys.CBC_TRANSFORMATION);
+        mCipherStreams = new CipherStreams (chunkSize);
+    }
+
+    @Benchmark
+    public long encrypt () throws IOException, GeneralSecurityException {
+        mCipher.init (Cipher.ENCRYPT_MODE, mKey);
+        return mCipherStreams.process (mCipher, new PatternInputStream (payloadSize), NULL_OUTPUT);
+    }
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream () {
+        @Override
+        public void write (int b) {
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Produces {@code size} bytes without holding them in memory.
+     */
+    private static class PatternInputStream extends InputStream {
+        private long mRemaining;
+
+        PatternInputStream (long size) {
+            mRemaining = size;
+        }
+
+        @Override
+        public int read () {
+            if (mRemaining == 0) {
+                return - 1;
+            }
+            mRemaining--;
+            return (int) (mRemaining & 0xff);
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) {
+            if (mRemaining == 0) {
+                return - 1;
+            }
+            int count = (int) Math.min (len, mRemaining);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) (mRemaining - i);
+            }
+            mRemaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.FingerprintKeyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyStoreException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when {@link FingerprintKeyManager} generates, loads and caches the key, against the
+ * PKCS12 key store of {@link SoftwareKeys}.
+ */
+public class FingerprintKeyManagerTest {
+
+    private FingerprintKeyManager mKeyManager;
+
+    @Before
+    public void setUp () {
+        mKeyManager = SoftwareKeys.newKeyManager ();
+    }
+
+    @Test
+    public void getKey_generatesTheMissingKeyOnceThenHits () throws KeyStoreException {
+        SecretKey key = mKeyManager.getKey ();
+        assertEquals (1, mKeyManager.getMissCount ());
+        assertEquals (0, mKeyManager.getHitCount ());
+        assertTrue (mKeyManager.getKeyStore ().containsAlias (SoftwareKeys.KEY_NAME));
+
+        assertSame (key, mKeyManager.getKey ());
+        assertSame (key, mKeyManager.getKey ());
+        assertEquals (1, mKeyManager.getMissCount ());
+        assertEquals (2, mKeyManager.getHitCount ());
+        assertEquals (0, mKeyManager.getRegenerationCount ());
+    }
+
+    @Test
+    public void getKey_loadsTheStoredKeyAfterInvalidate () {
+        SecretKey key = mKeyManager.getKey ();
+
+        mKeyManager.invalidate ();
+        SecretKey loaded = mKeyManager.getKey ();
+
+        assertArrayEquals (key.getEncoded (), loaded.getEncoded ());
+        assertEquals (2, mKeyManager.getMissCount ());
+        assertEquals (0, mKeyManager.getHitCount ());
+        assertEquals (0, mKeyManager.getRegenerationCount ());
+    }
+
+    @Test
+    public void recreateKey_replacesTheStoredKey () {
+        SecretKey key = mKeyManager.getKey ();
+
+        SecretKey recreated = mKeyManager.recreateKey ();
+
+        assertFalse (Arrays.equals (key.getEncoded (), recreated.getEncoded ()));
+        assertEquals (1, mKeyManager.getRegenerationCount ());
+        assertSame (recreated, mKeyManager.getKey ());
+        assertEquals (1, mKeyManager.getHitCount ());
+
+        // The new key is the one in the key store, not only the cached handle.
+        mKeyManager.invalidate ();
+        assertArrayEquals (recreated.getEncoded (), mKeyManager.getKey ().getEncoded ());
+        assertEquals (1, mKeyManager.getRegenerationCount ());
+    }
+}
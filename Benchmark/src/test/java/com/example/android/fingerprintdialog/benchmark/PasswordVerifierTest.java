@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.PasswordVerifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PasswordVerifier} survives a round trip through its file, and that
+ * {@link PasswordVerifier#readFrom} turns every kind of damaged file into an
+ * {@link IOException}, which the dialog recovers from by enrolling the password again.
+ */
+public class PasswordVerifierTest {
+
+    private static final char[] PASSWORD = "correct horse battery staple".toCharArray ();
+    // Far below what calibrate returns, to keep the tests fast.
+    private static final int ITERATIONS = 1000;
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_SIZE = 20;
+
+    private File mFile;
+
+    @Before
+    public void setUp () throws IOException {
+        mFile = File.createTempFile ("password_verifier", ".bin");
+    }
+
+    @After
+    public void tearDown () {
+        mFile.delete ();
+    }
+
+    @Test
+    public void verify_acceptsOnlyTheEnrolledPassword () throws GeneralSecurityException {
+        PasswordVerifier verifier = PasswordVerifier.enroll (PASSWORD, ITERATIONS);
+
+        assertTrue (verifier.verify (PASSWORD));
+        assertFalse (verifier.verify ("Tr0ub4dor&3".toCharArray ()));
+    }
+
+    @Test
+    public void readFrom_readsWhatWriteToWrote () throws GeneralSecurityException, IOException {
+        PasswordVerifier.enroll (PASSWORD, ITERATIONS).writeTo (mFile);
+
+        PasswordVerifier verifier = PasswordVerifier.readFrom (mFile);
+
+        assertEquals (ITERATIONS, verifier.getIterations ());
+        assertTrue (verifier.verify (PASSWORD));
+    }
+
+    @Test
+    public void readFrom_rejectsATruncatedFile () throws GeneralSecurityException, IOException {
+        PasswordVerifier.enroll (PASSWORD, ITERATIONS).writeTo (mFile);
+        RandomAccessFile file = new RandomAccessFile (mFile, "rw");
+        try {
+            file.setLength (file.length () - 1);
+        } finally {
+            file.close ();
+        }
+
+        assertUnreadable ();
+    }
+
+    @Test
+    public void readFrom_rejectsAnUnknownVersion () throws IOException {
+        write (2, ITERATIONS, SALT_SIZE, HASH_SIZE);
+        assertUnreadable ();
+    }
+
+    @Test
+    public void readFrom_rejectsNonPositiveIterations () throws IOException {
+        write (1, 0, SALT_SIZE, HASH_SIZE);
+        assertUnreadable ();
+        write (1, -1, SALT_SIZE, HASH_SIZE);
+        assertUnreadable ();
+    }
+
+    @Test
+    public void readFrom_rejectsUnexpectedLengths () throws IOException {
+        write (1, ITERATIONS, 0, HASH_SIZE);
+        assertUnreadable ();
+        write (1, ITERATIONS, SALT_SIZE, 0);
+        assertUnreadable ();
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void enroll_rejectsNonPositiveIterations () throws GeneralSecurityException {
+        PasswordVerifier.enroll (PASSWORD, 0);
+    }
+
+    /**
+     * Writes a verifier file in the layout of {@link PasswordVerifier#writeTo}.
+     */
+    private void write (int version, int iterations, int saltSize, int hashSize) throws IOException {
+        DataOutputStream out = new DataOutputStream (new FileOutputStream (mFile));
+        try {
+            out.writeByte (version);
+            out.writeInt (iterations);
+            out.writeByte (saltSize);
+            out.write (new byte[saltSize]);
+            out.writeByte (hashSize);
+            out.write (new byte[hashSize]);
+        } finally {
+            out.close ();
+        }
+    }
+
+    private void assertUnreadable () {
+        try {
+            PasswordVerifier.readFrom (mFile);
+            fail ("Read a damaged verifier");
+        } catch (IOException expected) {
+            // The dialog deletes the file and has the password enrolled again.
+        }
+    }
+}
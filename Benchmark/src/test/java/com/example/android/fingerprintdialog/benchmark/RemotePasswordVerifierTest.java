@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.HttpPasswordTransport;
+import com.example.android.fingerprintdialog.RemotePasswordVerifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the in-flight limit, timeouts and cancellation of {@link RemotePasswordVerifier}
+ * against {@link StubPasswordServer}.
+ */
+public class RemotePasswordVerifierTest {
+
+    private static final String PASSWORD = "correct horse battery staple";
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    // Long enough for the first call, which pays for class loading and the connection.
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final long AWAIT_SECONDS = 10;
+
+    private StubPasswordServer mServer;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp () throws IOException {
+        mServer = new StubPasswordServer (PASSWORD);
+        mServer.start ();
+        mExecutor = Executors.newCachedThreadPool ();
+    }
+
+    @After
+    public void tearDown () {
+        mExecutor.shutdownNow ();
+        mServer.stop ();
+    }
+
+    private RemotePasswordVerifier newVerifier (Executor executor, int readTimeoutMillis, int maxInFlight) {
+        HttpPasswordTransport transport = new HttpPasswordTransport (mServer.getUrl (),
+                CONNECT_TIMEOUT_MILLIS, readTimeoutMillis);
+        return new RemotePasswordVerifier (transport, executor, maxInFlight);
+    }
+
+    @Test
+    public void verify_answersWhetherThePasswordIsCorrect () throws InterruptedException {
+        RemotePasswordVerifier verifier = newVerifier (mExecutor, READ_TIMEOUT_MILLIS, 2);
+
+        RecordingCallback correct = new RecordingCallback ();
+        verifier.verify (PASSWORD.toCharArray (), correct);
+        RecordingCallback wrong = new RecordingCallback ();
+        verifier.verify ("wrong".toCharArray (), wrong);
+
+        correct.await ();
+        wrong.await ();
+        assertEquals (Boolean.TRUE, correct.mCorrect);
+        assertEquals (Boolean.FALSE, wrong.mCorrect);
+        awaitIdle (verifier);
+    }
+
+    @Test
+    public void verify_failsWhenTheServerAnswersAfterTheReadTimeout () throws InterruptedException {
+        mServer.setDelayMillis (500);
+        RemotePasswordVerifier verifier = newVerifier (mExecutor, 100, 2);
+
+        RecordingCallback callback = new RecordingCallback ();
+        verifier.verify (PASSWORD.toCharArray (), callback);
+
+        callback.await ();
+        assertNull (callback.mCorrect);
+        assertTrue (String.valueOf (callback.mFailure), callback.mFailure instanceof SocketTimeoutException);
+        awaitIdle (verifier);
+    }
+
+    @Test
+    public void cancel_skipsTheCallbackAndReleasesTheSlot () throws InterruptedException {
+        mServer.setDelayMillis (300);
+        RemotePasswordVerifier verifier = newVerifier (mExecutor, READ_TIMEOUT_MILLIS, 1);
+
+        RecordingCallback callback = new RecordingCallback ();
+        verifier.verify (PASSWORD.toCharArray (), callback).cancel ();
+
+        // The slot is released after the callback would have been called.
+        awaitIdle (verifier);
+        assertFalse (callback.isDone ());
+
+        RecordingCallback next = new RecordingCallback ();
+        verifier.verify (PASSWORD.toCharArray (), next);
+        next.await ();
+        assertEquals (Boolean.TRUE, next.mCorrect);
+    }
+
+    @Test
+    public void verify_rejectsBeyondTheInFlightLimit () throws InterruptedException {
+        mServer.setDelayMillis (300);
+        RemotePasswordVerifier verifier = newVerifier (mExecutor, READ_TIMEOUT_MILLIS, 1);
+
+        RecordingCallback first = new RecordingCallback ();
+        verifier.verify (PASSWORD.toCharArray (), first);
+        RecordingCallback second = new RecordingCallback ();
+        verifier.verify (PASSWORD.toCharArray (), second);
+
+        second.await ();
+        assertNull (second.mCorrect);
+        assertTrue (second.mFailure != null);
+        assertEquals (1, verifier.getRejectedCount ());
+        assertFalse (first.isDone ());
+
+        first.await ();
+        assertEquals (Boolean.TRUE, first.mCorrect);
+        assertEquals (1, mServer.getRequestCount ());
+        awaitIdle (verifier);
+    }
+
+    @Test
+    public void verify_releasesTheSlotWhenTheExecutorRejects () {
+        Executor rejecting = new Executor () {
+            @Override
+            public void execute (Runnable command) {
+                throw new RejectedExecutionException ("Shut down");
+            }
+        };
+        RemotePasswordVerifier verifier = newVerifier (rejecting, READ_TIMEOUT_MILLIS, 1);
+        char[] password = PASSWORD.toCharArray ();
+
+        try {
+            verifier.verify (password, new RecordingCallback ());
+            fail ("Expected the verification to be rejected");
+        } catch (RejectedExecutionException expected) {
+            // Expected.
+        }
+        assertEquals (0, verifier.getInFlightCount ());
+        assertEquals ('\0', password[0]);
+    }
+
+    private static void awaitIdle (RemotePasswordVerifier verifier) throws InterruptedException {
+        long deadline = System.nanoTime () + TimeUnit.SECONDS.toNanos (AWAIT_SECONDS);
+        while (verifier.getInFlightCount () > 0) {
+            if (System.nanoTime () > deadline) {
+                fail ("Verifications still in flight: " + verifier.getInFlightCount ());
+            }
+            Thread.sleep (10);
+        }
+    }
+
+    private static final class RecordingCallback implements RemotePasswordVerifier.Callback {
+        private final CountDownLatch mDone = new CountDownLatch (1);
+        volatile Boolean mCorrect;
+        volatile IOException mFailure;
+
+        @Override
+        public void onVerified (boolean correct) {
+            mCorrect = correct;
+            mDone.countDown ();
+        }
+
+        @Override
+        public void onFailed (IOException e) {
+            mFailure = e;
+            mDone.countDown ();
+        }
+
+        boolean isDone () {
+            return mDone.getCount () == 0;
+        }
+
+        void await () throws InterruptedException {
+            if (! mDone.await (AWAIT_SECONDS, TimeUnit.SECONDS)) {
+                fail ("No answer within " + AWAIT_SECONDS + "s");
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.SecretEnvelope;
+import com.example.android.fingerprintdialog.SecretStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the index, the batched commits and the compaction of {@link SecretStore} against a
+ * temporary file.
+ */
+public class SecretStoreTest {
+
+    // Offset of the value length of the first record: file header, type and name length.
+    private static final int FIRST_VALUE_LENGTH_OFFSET = 16 + 1 + 2;
+
+    private File mFile;
+    private SecretStore mStore;
+
+    @Before
+    public void setUp () throws IOException {
+        mFile = File.createTempFile ("secret_store", ".bin");
+        mFile.delete ();
+        mStore = new SecretStore (mFile);
+    }
+
+    @After
+    public void tearDown () throws IOException {
+        mStore.close ();
+        mFile.delete ();
+    }
+
+    private static SecretEnvelope envelope (int seed) {
+        byte[] iv = new byte[12];
+        byte[] body = new byte[64 + 16];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (seed + i);
+        }
+        iv[0] = (byte) seed;
+        return new SecretEnvelope (iv, body, 16);
+    }
+
+    private static void assertEnvelope (SecretEnvelope expected, SecretEnvelope actual) {
+        assertNotNull (actual);
+        assertArrayEquals (expected.getIv (), actual.getIv ());
+        assertArrayEquals (expected.getBody (), actual.getBody ());
+        assertEquals (expected.getTagLength (), actual.getTagLength ());
+    }
+
+    private void reopen () throws IOException {
+        mStore.close ();
+        mStore = new SecretStore (mFile);
+    }
+
+    @Test
+    public void putGetRemove () throws IOException {
+        mStore.put ("a", envelope (1));
+        mStore.put ("b", envelope (2));
+        assertEnvelope (envelope (1), mStore.get ("a"));
+        assertEnvelope (envelope (2), mStore.get ("b"));
+        assertEquals (2, mStore.size ());
+
+        mStore.put ("a", envelope (3));
+        assertEnvelope (envelope (3), mStore.get ("a"));
+
+        mStore.remove ("b");
+        assertNull (mStore.get ("b"));
+        assertFalse (mStore.contains ("b"));
+        assertEquals (1, mStore.size ());
+        assertTrue (mStore.getDeadBytes () > 0);
+    }
+
+    @Test
+    public void reopen_keepsCommittedChanges () throws IOException {
+        mStore.put ("a", envelope (1));
+        mStore.put ("b", envelope (2));
+        mStore.put ("a", envelope (3));
+        mStore.remove ("b");
+        mStore.commit ();
+        assertEquals (1, mStore.getCommitCount ());
+
+        reopen ();
+
+        assertEnvelope (envelope (3), mStore.get ("a"));
+        assertNull (mStore.get ("b"));
+        assertEquals (1, mStore.size ());
+    }
+
+    @Test
+    public void reopen_dropsTheUncommittedTail () throws IOException {
+        mStore.put ("a", envelope (1));
+        mStore.commit ();
+        mStore.put ("a", envelope (2));
+        mStore.put ("b", envelope (3));
+
+        reopen ();
+
+        assertEnvelope (envelope (1), mStore.get ("a"));
+        assertNull (mStore.get ("b"));
+        assertEquals (1, mStore.size ());
+    }
+
+    @Test
+    public void compact_keepsTheLiveEntries () throws IOException {
+        for (int i = 0; i < 10; i++) {
+            mStore.put ("a", envelope (i));
+            mStore.put ("b" + i, envelope (i));
+        }
+        mStore.remove ("b0");
+        int usedBytes = mStore.getUsedBytes ();
+
+        mStore.compact ();
+
+        assertEquals (1, mStore.getCompactionCount ());
+        assertEquals (0, mStore.getDeadBytes ());
+        assertTrue (mStore.getUsedBytes () < usedBytes);
+        assertEquals (10, mStore.size ());
+        assertEnvelope (envelope (9), mStore.get ("a"));
+        assertNull (mStore.get ("b0"));
+
+        reopen ();
+
+        assertEquals (10, mStore.size ());
+        assertEnvelope (envelope (9), mStore.get ("a"));
+        for (int i = 1; i < 10; i++) {
+            assertEnvelope (envelope (i), mStore.get ("b" + i));
+        }
+    }
+
+    @Test
+    public void open_rejectsAnOverflowingValueLength () throws IOException {
+        mStore.put ("a", envelope (1));
+        mStore.commit ();
+        mStore.close ();
+        RandomAccessFile file = new RandomAccessFile (mFile, "rw");
+        try {
+            file.seek (FIRST_VALUE_LENGTH_OFFSET);
+            // With the record header and the name added, this wraps around to a negative size.
+            file.writeInt (Integer.MAX_VALUE - 3);
+        } finally {
+            file.close ();
+        }
+
+        try {
+            mStore = new SecretStore (mFile);
+            fail ("Opened a corrupt store");
+        } catch (IOException expected) {
+            // The record runs past the committed end.
+        }
+        // Leave an open store for tearDown.
+        mFile.delete ();
+        mStore = new SecretStore (mFile);
+    }
+}
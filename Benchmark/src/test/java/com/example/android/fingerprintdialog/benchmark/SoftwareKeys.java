@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.example.android.fingerprintdialog.FingerprintKeyManager;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Software stand-ins for the AndroidKeyStore objects used by the sample.
+ */
+final class SoftwareKeys {
+
+    /**
+     * The JDK has no "PKCS7Padding"; for AES its PKCS5Padding is the same padding scheme.
+     */
+    static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    static final String KEY_NAME = "benchmark_key";
+
+    private SoftwareKeys () {
+    }
+
+    static FingerprintKeyManager newKeyManager () {
+        try {
+            return new FingerprintKeyManager (KeyStore.getInstance ("PKCS12"),
+                    KeyGenerator.getInstance ("AES"),
+                    new FingerprintKeyManager.KeyInitializer () {
+                        @Override
+                        public void init (KeyGenerator keyGenerator, String keyName) {
+                            keyGenerator.init (256);
+                        }
+                    }, KEY_NAME);
+        } catch (KeyStoreException | NoSuchAlgorithmException e) {
+            throw new RuntimeException (e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.fingerprintdialog.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the password verification endpoint, on the loopback interface. It
+ * accepts a single password and answers after a configurable delay, so that latency and
+ * timeouts of the client can be exercised without a network.
+ */
+final class StubPasswordServer {
+
+    static final String PATH = "/verify";
+
+    private final String mPassword;
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool ();
+    private final AtomicInteger mRequestCount = new AtomicInteger ();
+    private volatile long mDelayMillis;
+
+    StubPasswordServer (String password) throws IOException {
+        mPassword = password;
+        mServer = HttpServer.create (new InetSocketAddress (InetAddress.getLoopbackAddress (), 0), 0);
+        mServer.createContext (PATH, mHandler);
+        mServer.setExecutor (mExecutor);
+    }
+
+    void start () {
+        mServer.start ();
+    }
+
+    void stop () {
+        mServer.stop (0);
+        mExecutor.shutdownNow ();
+    }
+
+    /**
+     * Makes the following answers wait for {@code delayMillis} before being sent.
+     */
+    void setDelayMillis (long delayMillis) {
+        mDelayMillis = delayMillis;
+    }
+
+    int getRequestCount () {
+        return mRequestCount.get ();
+    }
+
+    URL getUrl () {
+        try {
+            return new URL ("http", mServer.getAddress ().getHostString (),
+                    mServer.getAddress ().getPort (), PATH);
+        } catch (MalformedURLException e) {
+            throw new AssertionError (e);
+        }
+    }
+
+    private final HttpHandler mHandler = new HttpHandler () {
+        @Override
+        public void handle (HttpExchange exchange) throws IOException {
+            mRequestCount.incrementAndGet ();
+            try {
+                String body = read (exchange.getRequestBody ());
+                String password = body.startsWith ("password=")
+                        ? URLDecoder.decode (body.substring ("password=".length ()), "UTF-8") : null;
+                if (mDelayMillis > 0) {
+                    TimeUnit.MILLISECONDS.sleep (mDelayMillis);
+                }
+                int code = mPassword.equals (password) ? 204 : 401;
+                exchange.sendResponseHeaders (code, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+            } finally {
+                exchange.close ();
+            }
+        }
+    };
+
+    private static String read (InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        byte[] buffer = new byte[512];
+        int read;
+        while ((read = in.read (buffer)) != -1) {
+            out.write (buffer, 0, read);
+        }
+        return out.toString ("UTF-8");
+    }
+}